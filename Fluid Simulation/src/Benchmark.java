@@ -0,0 +1,400 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Benchmark Harness
+ *
+ *      Runs the simulation headless and prints steps/sec, plus how far each variant drifts from the float baseline.
+ *
+ *      Usage: java -Djava.awt.headless=true Benchmark [steps]
+ *             java -Djava.awt.headless=true Benchmark stream [frames]
+ *             java -Djava.awt.headless=true Benchmark threads [steps]
+ *             java -Djava.awt.headless=true Benchmark realtime [steps] [budget ms]
+ *
+ *      -Dfluid.scene, -Dfluid.visualization (1 --> tracers) ... pick what gets run, forked variants get them too
+ *
+ *      Variants
+ *      - float   --> the normal full precision run, everything else is compared to this one
+ *      - compact --> dye and pressure stored as half floats
+ *      - offheap --> every field in native memory, should match float exactly
+ *      - Each variant runs in its own JVM, warmed up with WARMUP_STEPS on a throwaway simulation first.
+ *        In one JVM the later variants ran with the JIT's profile of the earlier ones (Field calls going megamorphic)
+ *        and came out at less than half their real speed
+ *      - The fields come back to this process through a temp file to be compared
+ *
+ *      Error is measured over the fluid cells only
+ *      - L2   --> root mean square difference
+ *      - Linf --> largest single difference
+ *      - rel  --> Linf divided by the largest value in the baseline
+ *
+ *      Stream mode runs a FrameServer and a decoding client over loopback in the same process
+ *      - bandwidth --> what actually went over the socket, and how that compares to sending raw frames
+ *      - latency   --> publish() to decoded on the client side (same clock, same process)
+ *      - skipped   --> frames the client never saw because it was still busy with an older one
+ *      - The client's final image is checked against the simulation's, a broken delta shows up there
+ *
+ *      Threads and realtime mode only use float fields, so they stay in one JVM, but warm up first the same way
+ *
+ *      Threads mode runs the same steps with 1, 2, 4 ... worker threads (up to the core count)
+ *      - Prints steps/sec and the speedup over 1 thread
+ *      - The banded kernels have to give exactly the same bits as the single thread run, every field and the image are compared
+ *
+ *      Realtime mode runs the normal fixed settings next to the real time mode (see Deadline) with the given budget,
+ *      both top out at the same ITER / ADVECTION_ORDER so the errors are only what the budget cost
+ *      - Prints the average / worst step time, how many steps missed the budget and what the settings ended up at
+ *      - The error columns show how much accuracy the real time run gave up to get there
+ */
+
+public class Benchmark {
+
+    static final int DEFAULT_STEPS = 200;
+    static final double DT = 1.0 / 144.0;
+    static final int DEFAULT_STREAM_FRAMES = 300;
+    static final int WARMUP_STEPS = 20;
+
+    static final String[] VARIANTS = {"float", "compact", "offheap"};
+
+    public static void main(String args[]) throws Exception {
+        if (args.length > 0 && args[0].equals("stream")) {
+            stream(args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_STREAM_FRAMES);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("realtime")) {
+            realtime(args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_STEPS, args.length > 2 ? Double.parseDouble(args[2]) : 1000.0 / 144.0);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("threads")) {
+            threads(args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_STEPS);
+            return;
+        }
+        if (args.length > 3 && args[0].equals("variant")) {
+            variant(args[1], Integer.parseInt(args[2]), Paths.get(args[3]));
+            return;
+        }
+
+        int steps = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_STEPS;
+
+        double[] rates = new double[VARIANTS.length];
+        long[] bytes = new long[VARIANTS.length];
+        float[][][] fields = new float[VARIANTS.length][][];
+        for (int i = 0; i < VARIANTS.length; i++) {
+            Path dump = Files.createTempFile("fluid-benchmark-" + VARIANTS[i], ".fields");
+            try {
+                String[] result = fork(VARIANTS[i], steps, dump);
+                rates[i] = Double.parseDouble(result[0]);
+                bytes[i] = Long.parseLong(result[1]);
+                fields[i] = readFields(dump);
+            } finally {
+                Files.deleteIfExists(dump);
+            }
+        }
+
+        // Only for the grid and the fluid cells
+        Liquid mask = new Liquid(false, 0);
+
+        System.out.println("Steps: " + steps + " (after " + WARMUP_STEPS + " warmup)   Grid: " + mask.xCells + "x" + mask.yCells + "   One JVM per variant");
+        System.out.println();
+        System.out.printf("%-10s %12s %14s%n", "variant", "steps/sec", "d+newD+p (KB)");
+        for (int i = 0; i < VARIANTS.length; i++) {
+            System.out.printf("%-10s %12.2f %14d%n", VARIANTS[i], rates[i], bytes[i] / 1024);
+        }
+        System.out.println();
+        System.out.printf("%-10s %-6s %14s %14s %14s%n", "variant", "field", "L2", "Linf", "rel");
+        for (int i = 1; i < VARIANTS.length; i++) {
+            printErrors(VARIANTS[i], mask, fields[0], fields[i]);
+        }
+    }
+
+    static Liquid create(String variant) {
+        switch (variant) {
+            case "float": return new Liquid(false, 0);
+            case "compact": return new Liquid(true, 0);
+            case "offheap": return new Liquid(false, 1);
+            default: throw new IllegalArgumentException("Unknown variant \"" + variant + "\"");
+        }
+    }
+
+    // Runs one variant in a fresh JVM, returns the steps/sec and field bytes it printed
+    static String[] fork(String variant, int steps, Path dump) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-Djava.awt.headless=true");
+        // Same scene, budget ... as this run
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("fluid.")) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Benchmark.class.getName());
+        command.addAll(List.of("variant", variant, Integer.toString(steps), dump.toString()));
+
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        String line;
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            line = out.readLine();
+        }
+        if (process.waitFor() != 0 || line == null) {
+            throw new IOException("Variant " + variant + " failed (exit code " + process.exitValue() + ")");
+        }
+        return line.trim().split("\\s+");
+    }
+
+    // The child side of fork(), prints "steps/sec bytes" and leaves u, v, d, p in the dump file
+    static void variant(String variant, int steps, Path dump) throws IOException {
+        run(create(variant), WARMUP_STEPS);
+        Liquid l = create(variant);
+        double rate = run(l, steps);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dump)))) {
+            out.writeInt(l.xCells);
+            out.writeInt(l.yCells);
+            for (Field field : new Field[] {l.u, l.v, l.d, l.p}) {
+                for (float value : values(l, field)) {
+                    out.writeFloat(value);
+                }
+            }
+        }
+        System.out.println(rate + " " + fieldBytes(l));
+    }
+
+    static float[][] readFields(Path dump) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(dump)))) {
+            int cells = in.readInt() * in.readInt();
+            float[][] fields = new float[4][cells];
+            for (float[] values : fields) {
+                for (int i = 0; i < cells; i++) {
+                    values[i] = in.readFloat();
+                }
+            }
+            return fields;
+        }
+    }
+
+    // Row by row
+    static float[] values(Liquid l, Field field) {
+        float[] values = new float[l.xCells * l.yCells];
+        for (int y = 0; y < l.yCells; y++) {
+            for (int x = 0; x < l.xCells; x++) {
+                values[y * l.xCells + x] = field.get(y, x);
+            }
+        }
+        return values;
+    }
+
+    static void printErrors(String variant, Liquid expected, Liquid actual) {
+        float[][] expectedFields = {values(expected, expected.u), values(expected, expected.v), values(expected, expected.d), values(expected, expected.p)};
+        float[][] actualFields = {values(actual, actual.u), values(actual, actual.v), values(actual, actual.d), values(actual, actual.p)};
+        printErrors(variant, expected, expectedFields, actualFields);
+    }
+
+    // Fields in the order u, v, d, p
+    static void printErrors(String variant, Liquid l, float[][] expected, float[][] actual) {
+        String[] names = {"u", "v", "d", "p"};
+        for (int f = 0; f < names.length; f++) {
+            printError(variant, names[f], l, expected[f], actual[f]);
+        }
+    }
+
+    // Runs the given amount of steps and returns steps per second
+    static double run(Liquid l, int steps) {
+        long start = System.nanoTime();
+        for (int i = 0; i < steps; i++) {
+            l.updateLiquid(DT);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return steps / seconds;
+    }
+
+    static long fieldBytes(Liquid l) {
+        return l.d.bytes() + l.newD.bytes() + l.p.bytes();
+    }
+
+    static void printError(String variant, String name, Liquid l, float[] expected, float[] actual) {
+        double sum = 0.0;
+        double max = 0.0;
+        double scale = 0.0;
+        int count = 0;
+        for (int y = 0; y < l.yCells; y++) {
+            for (int x = 0; x < l.xCells; x++) {
+                if (l.s[y][x] == 0) continue;
+                int i = y * l.xCells + x;
+                double diff = Math.abs(actual[i] - expected[i]);
+                sum += diff * diff;
+                max = Math.max(max, diff);
+                scale = Math.max(scale, Math.abs(expected[i]));
+                count++;
+            }
+        }
+        double l2 = count > 0 ? Math.sqrt(sum / count) : 0.0;
+        double rel = scale > 0 ? max / scale : 0.0;
+        System.out.printf("%-10s %-6s %14.6g %14.6g %14.6g%n", variant, name, l2, max, rel);
+    }
+
+    static void stream(int frames) throws Exception {
+        Liquid l = new Liquid();
+        FrameServer server = new FrameServer(0, l.xCells, l.yCells);
+        server.start();
+
+        FrameViewer viewer = new FrameViewer();
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()));
+
+        // Client side, decodes until the last frame shows up
+        long[] received = new long[4]; // frames, keyframes, bytes, skipped
+        double[] latency = new double[2]; // sum, max (ms)
+        Thread client = new Thread(() -> {
+            try {
+                long lastSeq = -1;
+                while (viewer.readFrame(channel)) {
+                    double ms = (System.nanoTime() - viewer.lastSentNanos) / 1e6;
+                    latency[0] += ms;
+                    latency[1] = Math.max(latency[1], ms);
+                    received[0]++;
+                    received[1] += viewer.lastKeyframe ? 1 : 0;
+                    received[2] += viewer.lastFrameBytes;
+                    received[3] += lastSeq >= 0 ? viewer.lastSeq - lastSeq - 1 : viewer.lastSeq;
+                    lastSeq = viewer.lastSeq;
+                    if (lastSeq == frames - 1) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Client failed: " + e.getMessage());
+            }
+        }, "Stream Client");
+        client.start();
+
+        // Give the server a moment to accept, otherwise the first frames go to nobody
+        while (server.selector.keys().size() < 2) {
+            Thread.sleep(1);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            l.updateLiquid(DT);
+            server.publish(l.pixels);
+        }
+        client.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        server.stop();
+        channel.close();
+
+        long rawBytes = (long) frames * l.xCells * l.yCells * 3;
+        boolean match = Arrays.equals(viewer.pixels, l.pixels);
+
+        System.out.println("Frames: " + frames + "   Grid: " + l.xCells + "x" + l.yCells);
+        System.out.println();
+        System.out.printf("received   %8d  (%d keyframes, %d skipped)%n", received[0], received[1], received[3]);
+        System.out.printf("sent       %8.1f MB  (%.1f%% of raw RGB)%n", received[2] / 1048576.0, 100.0 * received[2] / rawBytes);
+        System.out.printf("bandwidth  %8.1f MB/s%n", received[2] / 1048576.0 / seconds);
+        System.out.printf("per frame  %8.1f KB%n", received[0] > 0 ? received[2] / 1024.0 / received[0] : 0.0);
+        System.out.printf("latency    %8.2f ms avg, %.2f ms max%n", received[0] > 0 ? latency[0] / received[0] : 0.0, latency[1]);
+        System.out.println("final image " + (match ? "matches" : "DOES NOT MATCH"));
+    }
+
+    static void threads(int steps) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int restore = Workers.getParallelism();
+
+        Workers.setParallelism(1);
+        run(new Liquid(false, 0), WARMUP_STEPS);
+        Liquid serial = new Liquid(false, 0);
+        double serialRate = run(serial, steps);
+
+        System.out.println("Steps: " + steps + "   Grid: " + serial.xCells + "x" + serial.yCells + "   Cores: " + cores);
+        System.out.println();
+        System.out.printf("%-8s %12s %9s %10s%n", "threads", "steps/sec", "speedup", "identical");
+        System.out.printf("%-8d %12.2f %9.2f %10s%n", 1, serialRate, 1.0, "-");
+
+        // Always try at least 2 threads, even on one core the banding itself gets checked
+        for (int threads = 2; threads <= Math.max(2, cores); threads *= 2) {
+            Workers.setParallelism(threads);
+            Liquid banded = new Liquid(false, 0);
+            double rate = run(banded, steps);
+            System.out.printf("%-8d %12.2f %9.2f %10s%n", threads, rate, rate / serialRate, identical(serial, banded) ? "yes" : "NO");
+        }
+        Workers.setParallelism(restore);
+    }
+
+    // Bit for bit, not within some tolerance
+    static boolean identical(Liquid a, Liquid b) {
+        Field[][] pairs = {{a.u, b.u}, {a.v, b.v}, {a.d, b.d}, {a.p, b.p}};
+        for (Field[] pair : pairs) {
+            for (int y = 0; y < a.yCells; y++) {
+                for (int x = 0; x < a.xCells; x++) {
+                    if (Float.floatToRawIntBits(pair[0].get(y, x)) != Float.floatToRawIntBits(pair[1].get(y, x))) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return Arrays.equals(a.pixels, b.pixels);
+    }
+
+    static void realtime(int steps, double budgetMs) {
+        run(new Liquid(false, 0), WARMUP_STEPS);
+        Liquid fixed = new Liquid(false, 0);
+        fixed.setFrameBudget(0);
+        Liquid adaptive = new Liquid(false, 0);
+        adaptive.setFrameBudget(budgetMs);
+
+        double[] fixedTimes = timeSteps(fixed, steps);
+        double[] adaptiveTimes = timeSteps(adaptive, steps);
+        long fixedMissed = 0;
+        for (int i = 0; i < steps; i++) {
+            if (fixedTimes[i] > budgetMs) fixedMissed++;
+        }
+
+        System.out.println("Steps: " + steps + "   Grid: " + fixed.xCells + "x" + fixed.yCells + "   Budget: " + String.format("%.2f ms", budgetMs));
+        System.out.println();
+        System.out.printf("%-10s %10s %10s %10s%n", "variant", "avg (ms)", "max (ms)", "missed");
+        System.out.printf("%-10s %10.2f %10.2f %10d%n", "fixed", average(fixedTimes), max(fixedTimes), fixedMissed);
+        System.out.printf("%-10s %10.2f %10.2f %10d%n", "realtime", average(adaptiveTimes), max(adaptiveTimes), adaptive.deadline.missed);
+        System.out.println();
+        System.out.println("Ended at: " + adaptive.deadline.summary());
+        Deadline deadline = adaptive.deadline;
+        for (int stage = 0; stage < Deadline.STAGE_NAMES.length; stage++) {
+            System.out.printf("  %-8s %8.2f ms%n", Deadline.STAGE_NAMES[stage], deadline.stageNanos[stage] / 1e6);
+        }
+        System.out.println();
+        System.out.printf("%-10s %-6s %14s %14s %14s%n", "variant", "field", "L2", "Linf", "rel");
+        printErrors("realtime", fixed, adaptive);
+    }
+
+    // Wall clock ms of every step
+    static double[] timeSteps(Liquid l, int steps) {
+        double[] times = new double[steps];
+        for (int i = 0; i < steps; i++) {
+            long start = System.nanoTime();
+            l.updateLiquid(DT);
+            times[i] = (System.nanoTime() - start) / 1e6;
+        }
+        return times;
+    }
+
+    static double average(double[] values) {
+        double sum = 0;
+        for (double value : values) sum += value;
+        return values.length > 0 ? sum / values.length : 0;
+    }
+
+    static double max(double[] values) {
+        double max = 0;
+        for (double value : values) max = Math.max(max, value);
+        return max;
+    }
+}
@@ -0,0 +1,152 @@
+import java.util.Arrays;
+
+/*
+ * Real Time Mode
+ *
+ *      Gives every step a wall clock budget (6.9 ms at 144 FPS) and picks how much work the step does so it fits,
+ *      the simulation gets less accurate when things get heavy instead of the frame rate dropping.
+ *
+ *      - Each stage of updateLiquid is timed (forces, projection, advection, rendering), smoothed over a few steps
+ *      - It starts from the fixed settings (Liquid.ITER, Liquid.ADVECTION_ORDER) and never goes above them,
+ *        so a real time run is never more accurate (or slower) than the normal one and the two can be compared directly
+ *      - Before a step the cost is predicted from those times and the settings are lowered until it fits, in this order
+ *          1. advection order, RK2 backtrace --> plain Euler backtrace (only when ADVECTION_ORDER is 2)
+ *          2. projection iterations, ITER --> MIN_ITERATIONS
+ *          3. render decimation, the image (and streamlines) only updated every 2nd, 4th ... step, up to MAX_DECIMATION
+ *      - With time to spare it goes back up the same way
+ *      - A step that still goes over the budget counts as a miss
+ */
+
+public class Deadline {
+
+    /*
+     * CHANGEABLE PARAMETERS
+     */
+
+    final int MIN_ITERATIONS = 2;
+    final int MAX_DECIMATION = 8;
+    final double HEADROOM = 0.85;   // Plan for this much of the budget, the rest covers jitter (GC, other threads)
+    final double SMOOTHING = 0.2;   // Weight of the newest timing in the running averages
+
+    //DO NOT TOUCH!
+
+    static final int FORCES = 0;
+    static final int PROJECT = 1;
+    static final int ADVECT = 2;
+    static final int RENDER = 3;
+    static final String[] STAGE_NAMES = {"forces", "project", "advect", "render"};
+
+    final int maxIterations;
+    final int maxAdvectionOrder;
+    long budgetNanos;
+
+    // What the next step should do
+    int iterations;
+    int advectionOrder;
+    int decimation = 1;
+    boolean renderThisStep = true;
+
+    // Smoothed costs in nanoseconds, 0 --> not measured yet
+    final double[] stageNanos = new double[STAGE_NAMES.length];
+    double perIterationNanos = 0; // One projection sweep
+    double perOrderNanos = 0;     // Advection divided by its order, an RK2 backtrace samples the field about twice as often
+    double renderNanos = 0;       // A step that renders
+
+    // This step
+    long stepStart;
+    long lapStart;
+    final long[] lapNanos = new long[STAGE_NAMES.length];
+    int stepCount = 0;
+
+    // Totals
+    long steps = 0;
+    long missed = 0;
+    double lastStepMs = 0;
+
+    public Deadline(double budgetMs, int maxIterations, int maxAdvectionOrder) {
+        this.maxIterations = maxIterations;
+        this.maxAdvectionOrder = maxAdvectionOrder;
+        this.iterations = maxIterations;
+        this.advectionOrder = maxAdvectionOrder;
+        setBudget(budgetMs);
+    }
+
+    public void setBudget(double budgetMs) {
+        budgetNanos = (long) (budgetMs * 1e6);
+    }
+
+    public double getBudgetMs() {
+        return budgetNanos / 1e6;
+    }
+
+    public void beginStep() {
+        stepStart = System.nanoTime();
+        lapStart = stepStart;
+        Arrays.fill(lapNanos, 0);
+    }
+
+    // Charges the time since the last lap to the given stage
+    public void lap(int stage) {
+        long now = System.nanoTime();
+        lapNanos[stage] += now - lapStart;
+        lapStart = now;
+    }
+
+    public void endStep() {
+        long total = System.nanoTime() - stepStart;
+        lastStepMs = total / 1e6;
+        steps++;
+        if (total > budgetNanos) {
+            missed++;
+        }
+
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            stageNanos[stage] = smooth(stageNanos[stage], lapNanos[stage]);
+        }
+        // Two projections per step
+        perIterationNanos = smooth(perIterationNanos, lapNanos[PROJECT] / (2.0 * iterations));
+        perOrderNanos = smooth(perOrderNanos, lapNanos[ADVECT] / (double) advectionOrder);
+        if (renderThisStep) {
+            renderNanos = smooth(renderNanos, lapNanos[RENDER]);
+        }
+
+        plan();
+    }
+
+    double smooth(double average, double sample) {
+        return average == 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+
+    // Picks the settings for the next step
+    void plan() {
+        double target = budgetNanos * HEADROOM;
+
+        iterations = maxIterations;
+        advectionOrder = maxAdvectionOrder;
+        decimation = 1;
+        while (predict() > target) {
+            if (advectionOrder > 1) {
+                advectionOrder--;
+            } else if (iterations > MIN_ITERATIONS) {
+                iterations--;
+            } else if (decimation < MAX_DECIMATION) {
+                decimation *= 2;
+            } else {
+                break; // Doing as little as we can, it just won't fit
+            }
+        }
+
+        stepCount++;
+        renderThisStep = stepCount % decimation == 0;
+    }
+
+    // Costs are kept per unit of work (sweep, order, rendered step), so settings not in use right now are still predicted from fresh timings
+    double predict() {
+        return stageNanos[FORCES] + 2.0 * iterations * perIterationNanos + advectionOrder * perOrderNanos + renderNanos / decimation;
+    }
+
+    public String summary() {
+        return String.format("budget %.1f ms, last %.1f ms, %d/%d missed, %d iter, %s, render 1/%d",
+                getBudgetMs(), lastStepMs, missed, steps, iterations, advectionOrder == 1 ? "Euler" : "RK2", decimation);
+    }
+}
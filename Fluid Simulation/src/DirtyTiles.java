@@ -0,0 +1,116 @@
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Keeps track of which parts of the image changed since the last frame
+ *
+ *      - The image is split into TILE x TILE cell tiles
+ *      - A tile is marked when any of its pixels gets a different color
+ *      - collect() merges the marked tiles into a few rectangles and clears them for the next frame
+ *      - markBox() marks every tile a box of cells touches (where a streamline was and is now)
+ *      - markAll() forces the whole image to be redrawn (new container, first frame)
+ */
+
+public class DirtyTiles {
+
+    static final int TILE_SHIFT = 4;
+    static final int TILE = 1 << TILE_SHIFT; // 16x16 cells
+
+    final int xCells;
+    final int yCells;
+    final int tilesX;
+    final int tilesY;
+
+    final boolean[] dirty;
+    boolean all = true;
+
+    public DirtyTiles(int xCells, int yCells) {
+        this.xCells = xCells;
+        this.yCells = yCells;
+        this.tilesX = (xCells + TILE - 1) >> TILE_SHIFT;
+        this.tilesY = (yCells + TILE - 1) >> TILE_SHIFT;
+        this.dirty = new boolean[tilesX * tilesY];
+    }
+
+    public void mark(int y, int x) {
+        dirty[(y >> TILE_SHIFT) * tilesX + (x >> TILE_SHIFT)] = true;
+    }
+
+    // Corners are included and clipped to the grid
+    public void markBox(int x0, int y0, int x1, int y1) {
+        int tx0 = Math.max(0, x0) >> TILE_SHIFT;
+        int ty0 = Math.max(0, y0) >> TILE_SHIFT;
+        int tx1 = Math.min(x1, xCells - 1) >> TILE_SHIFT;
+        int ty1 = Math.min(y1, yCells - 1) >> TILE_SHIFT;
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                dirty[ty * tilesX + tx] = true;
+            }
+        }
+    }
+
+    public void markAll() {
+        all = true;
+    }
+
+    /*
+     * Adds the changed areas (in cells) to out and returns how many cells they cover.
+     *      - Runs of marked tiles in a row become one rectangle
+     *      - Rectangles directly on top of each other with the same width are joined
+     */
+    public int collect(List<Rectangle> out) {
+        if (all) {
+            all = false;
+            Arrays.fill(dirty, false);
+            out.add(new Rectangle(0, 0, xCells, yCells));
+            return xCells * yCells;
+        }
+
+        int covered = 0;
+        List<Rectangle> open = new ArrayList<>();
+        List<Rectangle> next = new ArrayList<>();
+
+        for (int ty = 0; ty < tilesY; ty++) {
+            int y0 = ty << TILE_SHIFT;
+            int h = Math.min(TILE, yCells - y0);
+
+            int tx = 0;
+            while (tx < tilesX) {
+                if (!dirty[ty * tilesX + tx]) {
+                    tx++;
+                    continue;
+                }
+                int start = tx;
+                while (tx < tilesX && dirty[ty * tilesX + tx]) {
+                    dirty[ty * tilesX + tx] = false;
+                    tx++;
+                }
+                int x0 = start << TILE_SHIFT;
+                int w = Math.min(tx << TILE_SHIFT, xCells) - x0;
+                covered += w * h;
+
+                Rectangle joined = null;
+                for (Rectangle r : open) {
+                    if (r.x == x0 && r.width == w) {
+                        r.height += h;
+                        joined = r;
+                        break;
+                    }
+                }
+                if (joined == null) {
+                    joined = new Rectangle(x0, y0, w, h);
+                    out.add(joined);
+                }
+                next.add(joined);
+            }
+
+            List<Rectangle> swap = open;
+            open = next;
+            next = swap;
+            next.clear();
+        }
+        return covered;
+    }
+}
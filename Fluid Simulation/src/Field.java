@@ -0,0 +1,50 @@
+/*
+ * A 2D scalar field stored as one flat block, indexed [y][x] like the rest of the solver.
+ *
+ *      - FloatField --> full float precision (the default)
+ *      - HalfField  --> 16 bit half floats, half the memory, values are still worked on as floats
+ *      - OffHeapField --> native memory (optionally a mapped file), floats or half floats
+ *
+ *      The kernels only ever call get / set / add, so they don't care which one they are given.
+ */
+
+public abstract class Field {
+
+    final int height;
+    final int width;
+
+    Field(int height, int width) {
+        this.height = height;
+        this.width = width;
+    }
+
+    public abstract float get(int y, int x);
+
+    public abstract void set(int y, int x, float value);
+
+    public void add(int y, int x, float value) {
+        set(y, x, get(y, x) + value);
+    }
+
+    public void fill(float value) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                set(y, x, value);
+            }
+        }
+    }
+
+    // Called when the solver swaps this field with its temp copy, only mapped fields care
+    public void setLive(boolean live) {
+    }
+
+    // Bytes used by the values themselves
+    public abstract long bytes();
+
+    public static Field create(int height, int width, boolean compact) {
+        if (compact) {
+            return new HalfField(height, width);
+        }
+        return new FloatField(height, width);
+    }
+}
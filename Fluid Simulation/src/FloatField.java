@@ -0,0 +1,40 @@
+import java.util.Arrays;
+
+/*
+ * Full precision field, one float per cell.
+ */
+
+public class FloatField extends Field {
+
+    final float[] data;
+
+    public FloatField(int height, int width) {
+        super(height, width);
+        data = new float[height * width];
+    }
+
+    @Override
+    public float get(int y, int x) {
+        return data[y * width + x];
+    }
+
+    @Override
+    public void set(int y, int x, float value) {
+        data[y * width + x] = value;
+    }
+
+    @Override
+    public void add(int y, int x, float value) {
+        data[y * width + x] += value;
+    }
+
+    @Override
+    public void fill(float value) {
+        Arrays.fill(data, value);
+    }
+
+    @Override
+    public long bytes() {
+        return data.length * 4L;
+    }
+}
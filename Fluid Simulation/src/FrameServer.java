@@ -0,0 +1,357 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.zip.Deflater;
+
+/*
+ * Frame Streaming Server
+ *
+ *      Sends the simulation image to anyone who connects (see FrameViewer), so long runs can be watched from elsewhere.
+ *
+ *      - publish() just copies the image and returns, encoding and sending happen on the server's own thread
+ *      - Frames are cut into TILE x TILE tiles, only tiles that changed since the last frame are sent (delta frames)
+ *      - The tiles are squeezed with Deflater at its fastest setting
+ *      - Every frame is encoded once, all clients write from views of the same buffer (no copy per client)
+ *      - Frame buffers are pooled direct buffers, the deflater writes straight into one after the header, and it goes back
+ *        to the pool once it is no longer the current frame and no client is still sending it (so no allocation per frame)
+ *      - Being direct, the socket writes go straight out of them (a heap buffer would be copied on every write)
+ *      - Non-blocking NIO, a slow client just skips frames and gets a full keyframe when it catches up,
+ *        the solver never waits on the network
+ *
+ *      Frame Layout (big endian)
+ *      - HEADER_BYTES header: MAGIC, frame number, publish time (System.nanoTime), width, height,
+ *        tile size, flags (1 --> keyframe), tile count, raw payload length, compressed payload length
+ *      - Compressed payload: for every tile, its index and then its pixels as 3 byte RGB, row by row
+ */
+
+public class FrameServer implements Runnable {
+
+    static final int MAGIC = 0x46534631; // "FSF1"
+    static final int HEADER_BYTES = 44;
+    static final int TILE = 16;
+    static final int KEYFRAME = 1;
+
+    final int width;
+    final int height;
+    final int tilesX;
+    final int tilesY;
+
+    final ServerSocketChannel server;
+    final Selector selector;
+    Thread serverThread;
+    volatile boolean running = false;
+
+    // Latest published image, handed over from the simulation thread
+    final int[] published;
+    long publishedSeq = -1;
+    long publishedNanos;
+    final Object publishLock = new Object();
+
+    // Server thread state
+    final int[] current;
+    final int[] previous;
+    long currentSeq = -1;
+    long previousSeq = -1;
+    long currentNanos;
+    Frame deltaFrame;          // Current frame against the previous one taken, made when someone needs it
+    Frame keyFrame;            // Current frame on its own, made when someone needs it
+    final ByteBuffer raw;
+    final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    final ArrayDeque<Frame> freeFrames = new ArrayDeque<>();
+
+    // Stats
+    volatile long bytesSent = 0;
+    volatile long framesEncoded = 0;
+
+    // One encoded frame, header and compressed payload
+    static class Frame {
+        ByteBuffer data = ByteBuffer.allocateDirect(1 << 16);
+        int length;
+        int users;             // Clients still sending it, plus one while it is keyFrame / deltaFrame
+
+        // Shares the bytes, only the position is its own
+        ByteBuffer view() {
+            ByteBuffer view = data.duplicate();
+            view.limit(length).position(0);
+            return view;
+        }
+
+        // Twice the room, keeping what was written so far
+        void grow() {
+            ByteBuffer bigger = ByteBuffer.allocateDirect(data.capacity() * 2);
+            data.flip();
+            bigger.put(data);
+            data = bigger;
+        }
+    }
+
+    static class Client {
+        final SocketChannel channel;
+        Frame frame;           // Frame being written
+        ByteBuffer pending;    // View of it
+        long sentSeq = -1;     // Last frame fully handed to this client
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    public FrameServer(int port, int width, int height) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.tilesX = (width + TILE - 1) / TILE;
+        this.tilesY = (height + TILE - 1) / TILE;
+        this.published = new int[width * height];
+        this.current = new int[width * height];
+        this.previous = new int[width * height];
+        this.raw = ByteBuffer.allocate(tilesX * tilesY * 4 + width * height * 3);
+
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public void start() {
+        running = true;
+        serverThread = new Thread(this, "Frame Server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    // Called by the simulation after each step, only copies the image
+    public void publish(int[] pixels) {
+        synchronized (publishLock) {
+            System.arraycopy(pixels, 0, published, 0, published.length);
+            publishedSeq++;
+            publishedNanos = System.nanoTime();
+        }
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(100);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isWritable()) {
+                        write(key);
+                    }
+                }
+
+                takeFrame();
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Client && key.isValid()) {
+                        write(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Frame server stopped: " + e.getMessage());
+        } finally {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, 0, new Client(channel));
+    }
+
+    // Copies the newest published image over, returns false if nothing new came in
+    boolean takeFrame() {
+        synchronized (publishLock) {
+            if (publishedSeq == currentSeq) {
+                return false;
+            }
+            // Frames published in between were never sent to anyone, so the delta is against the last frame taken
+            System.arraycopy(current, 0, previous, 0, current.length);
+            System.arraycopy(published, 0, current, 0, current.length);
+            previousSeq = currentSeq;
+            currentSeq = publishedSeq;
+            currentNanos = publishedNanos;
+            release(keyFrame);
+            release(deltaFrame);
+            keyFrame = null;
+            deltaFrame = null;
+            return true;
+        }
+    }
+
+    // Sends the next piece of data to a client, giving it the newest frame once the last one is out
+    void write(SelectionKey key) {
+        Client client = (Client) key.attachment();
+        try {
+            if (client.pending != null) {
+                bytesSent += client.channel.write(client.pending);
+                if (client.pending.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE); // Still busy, frames published meanwhile are skipped
+                    return;
+                }
+                done(client);
+            }
+
+            if (currentSeq >= 0 && client.sentSeq != currentSeq) {
+                Frame frame;
+                if (client.sentSeq >= 0 && client.sentSeq == previousSeq) {
+                    if (deltaFrame == null) {
+                        deltaFrame = encode(false);
+                    }
+                    frame = deltaFrame;
+                } else {
+                    if (keyFrame == null) {
+                        keyFrame = encode(true);
+                    }
+                    frame = keyFrame;
+                }
+                frame.users++;
+                client.frame = frame;
+                client.pending = frame.view();
+                client.sentSeq = currentSeq;
+                bytesSent += client.channel.write(client.pending);
+            }
+
+            key.interestOps(client.pending != null && client.pending.hasRemaining() ? SelectionKey.OP_WRITE : 0);
+            if (client.pending != null && !client.pending.hasRemaining()) {
+                done(client);
+            }
+        } catch (IOException e) {
+            key.cancel();
+            done(client);
+            try {
+                client.channel.close();
+            } catch (IOException ignored) {
+                // Already gone
+            }
+        }
+    }
+
+    // The client is finished with its frame (sent or gone)
+    void done(Client client) {
+        release(client.frame);
+        client.frame = null;
+        client.pending = null;
+    }
+
+    void release(Frame frame) {
+        if (frame != null && --frame.users == 0) {
+            freeFrames.push(frame);
+        }
+    }
+
+    // Encodes the current frame, either every tile or only the tiles that differ from the previous frame
+    Frame encode(boolean key) {
+        raw.clear();
+        int tileCount = 0;
+
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                int x0 = tx * TILE;
+                int y0 = ty * TILE;
+                int x1 = Math.min(width, x0 + TILE);
+                int y1 = Math.min(height, y0 + TILE);
+
+                if (!key && !tileChanged(x0, y0, x1, y1)) {
+                    continue;
+                }
+
+                raw.putInt(ty * tilesX + tx);
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        int rgb = current[y * width + x];
+                        raw.put((byte) (rgb >> 16));
+                        raw.put((byte) (rgb >> 8));
+                        raw.put((byte) rgb);
+                    }
+                }
+                tileCount++;
+            }
+        }
+
+        raw.flip();
+        int rawLength = raw.remaining();
+
+        Frame frame = freeFrames.isEmpty() ? new Frame() : freeFrames.pop();
+        frame.users = 1;
+
+        // Straight into the frame, after the header
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        frame.data.clear().position(HEADER_BYTES);
+        while (!deflater.finished()) {
+            if (!frame.data.hasRemaining()) {
+                frame.grow();
+            }
+            deflater.deflate(frame.data);
+        }
+        frame.length = frame.data.position();
+        int compressedLength = frame.length - HEADER_BYTES;
+
+        ByteBuffer header = frame.data.duplicate();
+        header.clear();
+        header.putInt(MAGIC);
+        header.putInt((int) currentSeq);
+        header.putLong(currentNanos);
+        header.putInt(width);
+        header.putInt(height);
+        header.putInt(TILE);
+        header.putInt(key ? KEYFRAME : 0);
+        header.putInt(tileCount);
+        header.putInt(rawLength);
+        header.putInt(compressedLength);
+
+        framesEncoded++;
+        return frame;
+    }
+
+    boolean tileChanged(int x0, int y0, int x1, int y1) {
+        for (int y = y0; y < y1; y++) {
+            int row = y * width;
+            for (int x = x0; x < x1; x++) {
+                if (current[row + x] != previous[row + x]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
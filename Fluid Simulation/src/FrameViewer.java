@@ -0,0 +1,202 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.swing.*;
+
+/*
+ * Frame Viewer
+ *
+ *      Connects to a FrameServer, decodes the stream and shows it.
+ *
+ *      Usage: java FrameViewer [host] [port]
+ *
+ *      The decoding part (readFrame) doesn't need a window, Benchmark uses it for the loopback measurement.
+ *      Doesn't touch GameWindow or Liquid, so it runs anywhere without scenes/ and without building a simulation.
+ */
+
+public class FrameViewer extends JPanel {
+
+    static final String DEFAULT_HOST = "localhost";
+    static final int DEFAULT_PORT = 5555;
+    static final int WINDOW_WIDTH = 1000;  // Same as the simulation window, the frames are scaled to fit
+    static final int WINDOW_HEIGHT = 1000;
+
+    int width = 0;
+    int height = 0;
+    BufferedImage image;
+    int[] pixels;
+    boolean haveKeyframe = false;
+
+    final ByteBuffer header = ByteBuffer.allocate(FrameServer.HEADER_BYTES);
+    ByteBuffer compressed = ByteBuffer.allocate(1 << 16);
+    byte[] raw = new byte[0];
+    final Inflater inflater = new Inflater();
+
+    // What the last frame was, for stats
+    long lastSeq;
+    long lastSentNanos;
+    boolean lastKeyframe;
+    int lastFrameBytes;
+
+    public static void main(String args[]) throws Exception {
+        String host = args.length > 0 ? args[0] : DEFAULT_HOST;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        FrameViewer viewer = new FrameViewer();
+
+        JFrame window = new JFrame();
+        window.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+        window.setResizable(false);
+        window.setTitle("Fluid Simulation Viewer");
+        window.add(viewer);
+        window.pack();
+        window.setVisible(true);
+
+        long bytes = 0;
+        int frames = 0;
+        long lastStats = System.nanoTime();
+        while (viewer.readFrame(channel)) {
+            viewer.repaint();
+            bytes += viewer.lastFrameBytes;
+            frames++;
+
+            long now = System.nanoTime();
+            if (now - lastStats >= 1000000000L) {
+                double seconds = (now - lastStats) / 1e9;
+                final String title = String.format("Fluid Simulation Viewer - %d fps, %.0f KB/s", Math.round(frames / seconds), bytes / 1024.0 / seconds);
+                SwingUtilities.invokeLater(() -> window.setTitle(title));
+                bytes = 0;
+                frames = 0;
+                lastStats = now;
+            }
+        }
+        channel.close();
+    }
+
+    public FrameViewer() {
+        this.setPreferredSize(new Dimension(WINDOW_WIDTH, WINDOW_HEIGHT));
+        this.setBackground(Color.black);
+        this.setDoubleBuffered(true);
+    }
+
+    // Reads one frame and applies it to the image, returns false once the server hangs up
+    public boolean readFrame(SocketChannel channel) throws IOException {
+        header.clear();
+        if (!readFully(channel, header)) {
+            return false;
+        }
+        header.flip();
+
+        if (header.getInt() != FrameServer.MAGIC) {
+            throw new IOException("Not a frame stream");
+        }
+        long seq = header.getInt();
+        long sentNanos = header.getLong();
+        int frameWidth = header.getInt();
+        int frameHeight = header.getInt();
+        int tile = header.getInt();
+        boolean keyframe = (header.getInt() & FrameServer.KEYFRAME) != 0;
+        int tileCount = header.getInt();
+        int rawLength = header.getInt();
+        int compressedLength = header.getInt();
+
+        if (compressed.capacity() < compressedLength) {
+            compressed = ByteBuffer.allocate(compressedLength);
+        }
+        compressed.clear().limit(compressedLength);
+        if (!readFully(channel, compressed)) {
+            throw new EOFException("Stream ended in the middle of a frame");
+        }
+
+        if (frameWidth != width || frameHeight != height) {
+            resizeImage(frameWidth, frameHeight);
+        }
+        if (raw.length < rawLength) {
+            raw = new byte[rawLength];
+        }
+
+        inflater.reset();
+        inflater.setInput(compressed.array(), 0, compressedLength);
+        try {
+            int done = 0;
+            while (done < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, done, rawLength - done);
+                if (n == 0 && inflater.needsInput()) {
+                    break;
+                }
+                done += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Broken frame " + seq, e);
+        }
+
+        // A delta only makes sense on top of what came before it
+        if (keyframe || haveKeyframe) {
+            applyTiles(raw, tileCount, tile);
+            haveKeyframe = true;
+        }
+
+        lastSeq = seq;
+        lastSentNanos = sentNanos;
+        lastKeyframe = keyframe;
+        lastFrameBytes = FrameServer.HEADER_BYTES + compressedLength;
+        return true;
+    }
+
+    void resizeImage(int frameWidth, int frameHeight) {
+        width = frameWidth;
+        height = frameHeight;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        haveKeyframe = false;
+    }
+
+    void applyTiles(byte[] data, int tileCount, int tile) {
+        int tilesX = (width + tile - 1) / tile;
+        int i = 0;
+        for (int t = 0; t < tileCount; t++) {
+            int index = ((data[i] & 0xFF) << 24) | ((data[i + 1] & 0xFF) << 16) | ((data[i + 2] & 0xFF) << 8) | (data[i + 3] & 0xFF);
+            i += 4;
+            int x0 = (index % tilesX) * tile;
+            int y0 = (index / tilesX) * tile;
+            int x1 = Math.min(width, x0 + tile);
+            int y1 = Math.min(height, y0 + tile);
+            for (int y = y0; y < y1; y++) {
+                for (int x = x0; x < x1; x++) {
+                    pixels[y * width + x] = ((data[i] & 0xFF) << 16) | ((data[i + 1] & 0xFF) << 8) | (data[i + 2] & 0xFF);
+                    i += 3;
+                }
+            }
+        }
+    }
+
+    static boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Same orientation as the simulation window, row 0 at the bottom
+    public void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        if (image == null) {
+            return;
+        }
+        Graphics2D graphics = (Graphics2D) g;
+        graphics.scale(1, -1);
+        graphics.translate(0, -getHeight());
+        graphics.drawImage(image, 0, 0, getWidth(), getHeight(), null);
+    }
+}
@@ -1,5 +1,6 @@
 import java.awt.*;
-import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.swing.*;
 
@@ -14,6 +15,10 @@ public class GameWindow extends JPanel implements Runnable {
     
     int FPS = 144;
 
+    final float FULL_REFRESH_FRACTION = 0.6f; // Above this much change, just repaint the whole window
+    final int MAX_DIRTY_RECTS = 64;           // More pieces than this isn't worth painting one by one
+    final boolean SHOW_REDRAW_STATS = true;   // Shows how much of the window gets redrawn in the title
+
     /*
      *  FUN STUFF!
      */
@@ -25,6 +30,18 @@ public class GameWindow extends JPanel implements Runnable {
     // DO NOT TOUCH!
     double deltaTime = 0;
     Thread gameThread;
+    final ViewControls controls = new ViewControls(); // Number keys, title
+
+    // Dirty rectangles (in cells) waiting for the Swing thread to paint them
+    final List<Rectangle> dirtyRects = new ArrayList<>();
+    final List<Rectangle> pendingRects = new ArrayList<>();
+    boolean fullRepaintPending = false;
+    boolean paintScheduled = false;
+
+    // Redraw metric, fraction of the window's pixels repainted
+    double redrawnPixels = 0;
+    int redrawFrames = 0;
+    long lastStatsTime = System.nanoTime();
 
     
     // Creating the game windows and setting up the settings
@@ -33,6 +50,7 @@ public class GameWindow extends JPanel implements Runnable {
         this.setBackground(Color.black);
         this.setDoubleBuffered(true);
         this.setFocusable(true);
+        this.addKeyListener(controls);
     }
 
     // Starting thread, managing frame updates
@@ -60,39 +78,129 @@ public class GameWindow extends JPanel implements Runnable {
             if (delta >= 1) {
                 update(delta); // Sending the deltaTime through the update function
                 deltaTime = delta;
-                repaint();
+                present();
                 delta--;
             }
 
         }
     }
 
+    /*
+     * Hands the changed parts of the frame to Swing
+     *      - Only the rectangles that changed get painted (and copied to the screen)
+     *      - Falls back to one full repaint when most of the window changed anyway
+     */
+    public void present(){
+        dirtyRects.clear();
+        int changedCells = l.dirty.collect(dirtyRects);
+        float fraction = (float) changedCells / (l.xCells * l.yCells);
+
+        boolean full = fraction >= FULL_REFRESH_FRACTION || dirtyRects.size() > MAX_DIRTY_RECTS;
+        if (full) {
+            fraction = 1.0f;
+        }
+
+        synchronized (pendingRects) {
+            if (full) {
+                fullRepaintPending = true;
+                pendingRects.clear();
+            } else if (!fullRepaintPending) {
+                pendingRects.addAll(dirtyRects);
+            }
+            if (!paintScheduled && (fullRepaintPending || !pendingRects.isEmpty())) {
+                paintScheduled = true;
+                SwingUtilities.invokeLater(this::paintPending);
+            }
+        }
+
+        recordRedraw(fraction);
+    }
+
+    // Runs on the Swing thread, paints everything that piled up since it last ran
+    void paintPending(){
+        boolean full;
+        Rectangle[] rects;
+        synchronized (pendingRects) {
+            full = fullRepaintPending;
+            rects = pendingRects.toArray(new Rectangle[0]);
+            pendingRects.clear();
+            fullRepaintPending = false;
+            paintScheduled = false;
+        }
+
+        if (full) {
+            paintImmediately(0, 0, getWidth(), getHeight());
+            return;
+        }
+        for (Rectangle r : rects) {
+            paintImmediately(toScreen(r));
+        }
+    }
+
+    // Cells to window pixels, the window is flipped so cell row 0 is at the bottom
+    Rectangle toScreen(Rectangle cells){
+        int x0 = gameWidth * cells.x / l.xCells;
+        int x1 = (gameWidth * (cells.x + cells.width) + l.xCells - 1) / l.xCells;
+        int y0 = gameHeight * cells.y / l.yCells;
+        int y1 = (gameHeight * (cells.y + cells.height) + l.yCells - 1) / l.yCells;
+        return new Rectangle(x0, getHeight() - y1, x1 - x0, y1 - y0);
+    }
+
+    void recordRedraw(float fraction){
+        redrawnPixels += fraction;
+        redrawFrames++;
+
+        long now = System.nanoTime();
+        if (SHOW_REDRAW_STATS && now - lastStatsTime >= 1000000000L) {
+            ViewControls.setTitle(this, l, String.format("Fluid Simulation - %.0f%% redrawn", 100.0 * redrawnPixels / redrawFrames));
+            redrawnPixels = 0;
+            redrawFrames = 0;
+            lastStatsTime = now;
+        }
+    }
+
     public void updateDisplay(Graphics2D graphics){
-        
-        BufferedImage buffer = new BufferedImage(gameWidth, gameHeight, BufferedImage.TYPE_INT_ARGB);
-
-        for(int i = 0; i < l.getHeight(); i++){ // Displaying all the nice little cells!
-            for(int j = 0; j < l.getWidth(); j++){
-                graphics.setColor(l.getColor(i,j));
-                graphics.fill(l.getCell(i, j));
-
-                // //Grid Lines
-                // graphics.setColor(Color.BLACK);
-                // graphics.draw(l.getCell(i,j));
-                
-                // //Velocity Feild
-                // graphics.setColor(Color.WHITE);
-                // graphics.draw(l.getHorizontalLine(i, j));
-                // graphics.draw(l.getVerticalLine(i, j));
 
+        // Displaying all the nice little cells! (one pixel per cell, scaled up to the window)
+        // Only the part of the image under the clip is drawn, so small repaints only upload small pieces
+        Rectangle clip = graphics.getClipBounds();
+        if (clip == null) {
+            graphics.drawImage(l.image, 0, 0, gameWidth, gameHeight, null);
+        } else {
+            int x0 = Math.max(0, clip.x * l.xCells / gameWidth);
+            int x1 = Math.min(l.xCells, ((clip.x + clip.width) * l.xCells + gameWidth - 1) / gameWidth);
+            int y0 = Math.max(0, clip.y * l.yCells / gameHeight);
+            int y1 = Math.min(l.yCells, ((clip.y + clip.height) * l.yCells + gameHeight - 1) / gameHeight);
+            if (x0 < x1 && y0 < y1) {
+                graphics.drawImage(l.image,
+                        gameWidth * x0 / l.xCells, gameHeight * y0 / l.yCells,
+                        gameWidth * x1 / l.xCells, gameHeight * y1 / l.yCells,
+                        x0, y0, x1, y1, null);
             }
         }
-        graphics.drawImage(buffer, 0, 0, null);
-        //l.drawStreamlines(graphics);
+
+        // for(int i = 0; i < l.getHeight(); i++){
+        //     for(int j = 0; j < l.getWidth(); j++){
+        //         //Grid Lines
+        //         graphics.setColor(Color.BLACK);
+        //         graphics.draw(l.getCell(i,j));
+        //
+        //         //Velocity Feild
+        //         graphics.setColor(Color.WHITE);
+        //         graphics.draw(l.getHorizontalLine(i, j));
+        //         graphics.draw(l.getVerticalLine(i, j));
+        //     }
+        // }
+
+        if (l.SHOW_STREAMLINES) {
+            l.drawStreamlines(graphics);
+        }
 
     }
 
     public void update(double dt){      
+        controls.apply(l);
+
         //Update the Cell
         l.updateLiquid(deltaTime / FPS);
     }
@@ -0,0 +1,100 @@
+/*
+ * Compact field, every cell is stored as a 16 bit IEEE half float.
+ *
+ *      - Reads go through a 64K lookup table, so decoding is a single load
+ *      - Writes round to the nearest half (ties to even), same as Float.floatToFloat16 on newer JDKs
+ *      - Range is about +-65504 with ~3 decimal digits, fine for dye and pressure visualization
+ *      - Small increments (smaller than half a step of the stored value) get lost, see Benchmark for the error
+ */
+
+public class HalfField extends Field {
+
+    static final float[] DECODE = new float[1 << 16];
+
+    static {
+        for (int h = 0; h < DECODE.length; h++) {
+            DECODE[h] = toFloat((short) h);
+        }
+    }
+
+    final short[] data;
+
+    public HalfField(int height, int width) {
+        super(height, width);
+        data = new short[height * width];
+    }
+
+    @Override
+    public float get(int y, int x) {
+        return DECODE[data[y * width + x] & 0xffff];
+    }
+
+    @Override
+    public void set(int y, int x, float value) {
+        data[y * width + x] = toHalf(value);
+    }
+
+    @Override
+    public void fill(float value) {
+        java.util.Arrays.fill(data, toHalf(value));
+    }
+
+    @Override
+    public long bytes() {
+        return data.length * 2L;
+    }
+
+    public static short toHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exp = (bits >>> 23) & 0xff;
+        int mant = bits & 0x7fffff;
+
+        if (exp == 0xff) { // Infinity or NaN
+            return (short) (sign | 0x7c00 | (mant != 0 ? 0x200 | (mant >>> 13) : 0));
+        }
+
+        int e = exp - 127 + 15;
+        if (e >= 0x1f) { // Too big, becomes infinity
+            return (short) (sign | 0x7c00);
+        }
+
+        if (e <= 0) { // Subnormal half (or zero)
+            if (e < -10) {
+                return (short) sign;
+            }
+            mant |= 0x800000;
+            int shift = 14 - e;
+            int half = mant >> shift;
+            int rem = mant & ((1 << shift) - 1);
+            int mid = 1 << (shift - 1);
+            if (rem > mid || (rem == mid && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+
+        int half = (e << 10) | (mant >> 13);
+        int rem = mant & 0x1fff;
+        if (rem > 0x1000 || (rem == 0x1000 && (half & 1) != 0)) {
+            half++; // A carry here rolls into the exponent, which is still the right answer
+        }
+        return (short) (sign | half);
+    }
+
+    public static float toFloat(short half) {
+        int bits = half & 0xffff;
+        int sign = (bits & 0x8000) << 16;
+        int exp = (bits >>> 10) & 0x1f;
+        int mant = bits & 0x3ff;
+
+        if (exp == 0x1f) { // Infinity or NaN
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mant << 13));
+        }
+        if (exp == 0) { // Zero or subnormal
+            float value = mant * 0x1p-24f;
+            return sign != 0 ? -value : value;
+        }
+        return Float.intBitsToFloat(sign | ((exp + 112) << 23) | (mant << 13));
+    }
+}
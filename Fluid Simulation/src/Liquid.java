@@ -1,9 +1,10 @@
 import java.awt.*;
-import java.awt.geom.GeneralPath;
 import java.awt.geom.Line2D;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.file.Paths;
 import java.util.Arrays;
-import java.util.Random;
 
 /*
  * Main Ideas
@@ -41,42 +42,80 @@ public class Liquid extends GameWindow{
      */
 
     /*
-     * SCENE 1: A GRAVITY TANK, FOR PRESSURE VISUALIZATION AND GOOD FOR CHECKING COMPRESSION SOLVER
-     * SCENE 2: A WIND TUNNEL, THE MAIN SCENE THAT I AM TRYING TO IMPLEMENT AS FLUID TRAVERSES AROUND A SPHERE
-     * SCENE 3: VELOCITY INJECTOR, A VELOCITY STREAM INTRODUCED INTO A STATIC TANK
+     * SCENES LIVE IN scenes/*.properties (SEE Scene), PICK ONE HERE OR WITH -Dfluid.scene=<name>
      * 
+     * tank: A GRAVITY TANK, FOR PRESSURE VISUALIZATION AND GOOD FOR CHECKING COMPRESSION SOLVER
+     * windtunnel: A WIND TUNNEL, THE MAIN SCENE THAT I AM TRYING TO IMPLEMENT AS FLUID TRAVERSES AROUND A SPHERE
+     * injector: VELOCITY INJECTOR, A VELOCITY STREAM INTRODUCED INTO A STATIC TANK
+     * wave: THE WIND TUNNEL WITH A PULSING INLET
+     * 
+     * The scene file also sets the grid size and the container
      * CONTAINER 1: SPHERE
-     * CONTAINER 2: CUBE
+     * CONTAINER 2: AIRFOIL
      * CONTAINER 3: PEGS
+     * CONTAINER 4: CUBE
+     * 
+     * (Shapes live in Obstacles, number keys 0-4 swap them while running)
      */
 
-    final int SCENE = 1;
-    final int CONTAINER = 2;
-
-    final int XCELLS = 500;
-    final int YCELLS = 500;
+    static final String SCENE = "windtunnel";
 
     final float VECTOR_LINE_SCALE = 0.5f;
+    final boolean SHOW_STREAMLINES = true;
+
+    /*
+     * VISUALIZATION 0: DYE, THE WHOLE DENSITY GRID IS ADVECTED AND COLORED
+     * VISUALIZATION 1: TRACERS, PARTICLES RIDE THE FLOW FROM THE INJECTORS (SEE Tracers), NO DYE GRID
+     * PICK ONE HERE OR WITH -Dfluid.visualization=<0 or 1>
+     */
+    static final int VISUALIZATION = 0;
+
+    // Store dye and pressure as 16 bit half floats (velocity always stays full precision)
+    static final boolean COMPACT_FIELDS = false;
+
+    /*
+     * STORAGE 0: JAVA HEAP
+     * STORAGE 1: OFF HEAP (NATIVE MEMORY, NOT SCANNED BY THE GC)
+     * STORAGE 2: MEMORY MAPPED FILES IN MAPPED_DIR, OTHER PROGRAMS CAN READ THE LIVE FIELDS
+     */
+    static final int STORAGE = 0;
+    static final String MAPPED_DIR = "fields";
 
-    final float GRAVITY = -9.8f;
     final float OVER_RELAX_CONST = 1.9f;  //Set between 1 and 2.
     final float DENSITY = 100.0f;
 
-    final float WIND_TUNNEL_SPEED = 50.0f;
-    final float DENSITY_STREAM_SPEED = 5.0f;
-
     final int ITER = 10;
+    final int ADVECTION_ORDER = 1; // 1 --> Euler backtrace, 2 --> RK2 (midpoint) backtrace
+
+    // Real time mode (see Deadline), every step gets this many ms and gives up accuracy to fit, 0 --> off (-Dfluid.budget=ms)
+    static final double FRAME_BUDGET_MS = 0.0;
     int CTER = 0;
 
     //DO NOT TOUCH!
 
-    int xCells = XCELLS;
-    int yCells = YCELLS;
+    Scene scene;
+    final int visualization; // VISUALIZATION unless picked otherwise
+    Scene.Cells gravityCells; // Depends on the walls, rebuilt with the container
+
+    int xCells;
+    int yCells;
 
-    float cellWidth = gameWidth/xCells;
-    float cellHeight = gameHeight/yCells;
+    float cellWidth;
+    float cellHeight;
 
-    float relativeWindSpeed = WIND_TUNNEL_SPEED;
+    float relativeWindSpeed; // Inflow speed this step (it moves when the scene has a wave inlet)
+    float time = 0.0f;       // Simulated seconds, for the wave inlet
+
+    // Per step settings, fixed at ITER / ADVECTION_ORDER unless the real time mode picks them
+    int iterations = ITER;
+    int advectionOrder = ADVECTION_ORDER;
+    boolean renderStep = true;
+    Deadline deadline; // Only made in real time mode
+
+    // Field ids for sampleField, cheaper than switching on a String every sample
+    static final int U_FIELD = 0;
+    static final int V_FIELD = 1;
+    static final int D_FIELD = 2;
 
     /*
         *  U --> Stored at the middle right of a cell 
@@ -85,143 +124,245 @@ public class Liquid extends GameWindow{
         * 
         */
 
-    Rectangle2D[][] cells = new Rectangle2D.Float[yCells][xCells]; // Cells that can be visualized!
-    Color[][] colors = new Color[yCells][xCells];
+    // Cells that can be visualized! One pixel per cell, scaled up to the window when drawn
+    BufferedImage image;
+    int[] pixels;
+
+    DirtyTiles dirty; // Parts of the image that changed since the last frame
+
+    static final int WALL_RGB = Color.DARK_GRAY.getRGB() & 0xFFFFFF;
+    static final int FLUID_RGB = Color.black.getRGB() & 0xFFFFFF;
 
-    float[][] u = new float[yCells][xCells]; // Horizontal Velocity Components
-    float[][] v = new float[yCells][xCells]; // Vertical Velocity Components
+    int container;
+    Obstacles obstacles; // Container mask and signed distance field
+
+    Field u; // Horizontal Velocity Components
+    Field v; // Vertical Velocity Components
     
-    float[][] newU = new float[yCells][xCells]; // New Vertical Velocity Components
-    float[][] newV = new float[yCells][xCells]; // New Vertical Velocity Components
+    Field newU; // New Vertical Velocity Components
+    Field newV; // New Vertical Velocity Components
 
-    float[][] d = new float[yCells][xCells]; // Density Value for Each Cell
-    float[][] newD = new float[yCells][xCells]; //Temp new Density Values
+    Field d; // Density Value for Each Cell
+    Field newD; //Temp new Density Values
 
-    int[][] s = new int[yCells][xCells]; // Scalar Value --> 0 represents a wall, 1 represents fluid
+    byte[][] s; // Scalar Value --> 0 represents a wall, 1 represents fluid
     
-    float[][] p = new float[yCells][xCells]; // Pressure Value 
+    Field p; // Pressure Value 
+
+    Streamlines streamlines; // Cached streamlines, retraced off the Swing thread
+    Tracers tracers; // Only made in tracer mode
+
+    // Row band workers (see Workers), made once instead of a lambda per step
+    float stepDt;
+    final Workers.Band advectVelocityBand = this::advectVelocityRows;
+    final Workers.Band advectDensityBand = this::advectDensityRows;
+    final Workers.Band rangeBand = this::rangeRows;
+    final Workers.Band colorBand = this::colorRows;
+
+    // Coloring state shared with the bands, each row keeps its own dye / pressure range
+    Field colorDye;
+    float[] rowDMin, rowDMax, rowPMin, rowPMax;
+    float colorDMin, colorDRange, colorPMin, colorPRange;
 
-    @SuppressWarnings("unused")
     public Liquid(){
+        this(COMPACT_FIELDS, STORAGE);
+    }
+
+    public Liquid(boolean compactFields){
+        this(compactFields, STORAGE);
+    }
+
+    public Liquid(boolean compactFields, int storage){
+        this(Scene.load(System.getProperty("fluid.scene", SCENE)), compactFields, storage);
+    }
+
+    public Liquid(Scene scene, boolean compactFields, int storage){
+        this(scene, compactFields, storage, Integer.parseInt(System.getProperty("fluid.visualization", Integer.toString(VISUALIZATION))));
+    }
+
+    public Liquid(Scene scene, boolean compactFields, int storage, int visualization){
+        this.scene = scene;
+        this.visualization = visualization;
+        xCells = scene.xCells;
+        yCells = scene.yCells;
+        cellWidth = gameWidth/xCells;
+        cellHeight = gameHeight/yCells;
+        relativeWindSpeed = scene.inflowSpeed(0.0f);
+
+        image = new BufferedImage(xCells, yCells, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        dirty = new DirtyTiles(xCells, yCells);
+        s = new byte[yCells][xCells];
+        rowDMin = new float[yCells];
+        rowDMax = new float[yCells];
+        rowPMin = new float[yCells];
+        rowPMax = new float[yCells];
+
+        // Velocity is always full precision
+        u = allocateField("u", false, storage);
+        v = allocateField("v", false, storage);
+        newU = allocateField("newU", false, storage);
+        newV = allocateField("newV", false, storage);
+
+        // Dye and pressure can be stored compactly, they are only ever looked at
+        d = allocateField("d", compactFields, storage);
+        newD = allocateField("newD", compactFields, storage);
+        p = allocateField("p", compactFields, storage);
+        markSwapped(u, newU);
+        markSwapped(v, newV);
+        markSwapped(d, newD);
+
+        //Zero out all the components! (mapped fields may still hold an old run)
+        u.fill(0.0f);
+        v.fill(0.0f);
+        newU.fill(0.0f);
+        newV.fill(0.0f);
+        d.fill(0.0f);
+
+        if(scene.initialU != 0.0f){ // Given a wind tunnel!
+            for(int y = 0; y < yCells; y++){
+                u.set(y, 1, scene.initialU);
+            }
+        }
+
+        //Walls and the container, straight into the mask and the image
+        setContainer(scene.container);
+
+        streamlines = new Streamlines(this);
+
+        setFrameBudget(Double.parseDouble(System.getProperty("fluid.budget", Double.toString(FRAME_BUDGET_MS))));
+
+        if(visualization == 1){
+            tracers = new Tracers(this);
+        }
+    }    
+
+    /*
+     * Rebuilds the walls and swaps in a new container (see Obstacles), can be called between steps
+     */
+    public void setContainer(int container){
+        this.container = container;
+        obstacles = Obstacles.load(container, xCells, yCells);
 
-        //Initialize the Liquid!
         for(int y = 0; y < yCells; y++){
+            byte[] row = s[y];
+            Arrays.fill(row, (byte) 1);
+
+            /*
+                * Setup Boundaries
+                */
+            if((y == 0 && scene.wallBottom) || (y == yCells-1 && scene.wallTop)){
+                Arrays.fill(row, (byte) 0); // Set the scalar value to show that it is a wall. 
+            }
+            if(scene.wallLeft){
+                row[0] = 0;
+            }
+            if(scene.wallRight){
+                row[xCells-1] = 0;
+            }
+
+            //Add Container
             for(int x = 0; x < xCells; x++){
-                
-            
-                //Zero out all the components!
-                u[y][x] = 0.0f;
-                v[y][x] = 0.0f;
-                newU[y][x] = 0.0f;
-                newV[y][x] = 0.0f;
-                d[y][x] = 0.0f;
-                s[y][x] = 1;
-
-                //Set up the Cells!
-                cells[y][x] = new Rectangle2D.Float(x * cellWidth, y * cellHeight, cellWidth, cellHeight);
-                colors[y][x] = Color.black;
-
-
-                /*
-                    * Setup Boundaries
-                    */
-                if(SCENE == 0 || SCENE == 2){
-                    if(y == 0 || x == 0 || y == yCells-1 || x == xCells-1){
-                        s[y][x] = 0; // Set the scalar value to show that it is a wall. 
-                        colors[y][x] = Color.DARK_GRAY;
-                    }
-                }
-                if(SCENE == 1){ // Given a wind tunnel!
-                    if(y == 0 || y == yCells-1 || x == 0){
-                        s[y][x]  = 0;
-                        colors[y][x] = Color.DARK_GRAY;
-                    }else{
-                        s[y][x] = 1;
-                    }
-                    if(x == 1){
-                        u[y][x] = 5.0f;
-                    }
+                if(obstacles.isSolid(y, x)){
+                    row[x] = 0;
                 }
-        
-                /*
-                    * Special Cases!
-                    */
-                
-                //Add Container
+            }
 
-                if(CONTAINER == 0){ // No Container
-                    ; 
-                }
-                else if (CONTAINER == 1){ // Container is a sphere
-                    int radius = 20;
-                    Vector2 centerPos = new Vector2(xCells/2 - 20, yCells/2);
-                    Vector2 currentPos = new Vector2(x,y);
-                    if(currentPos.subtract(centerPos).magnitude() <= radius+ 3){
-                        s[y][x] = 0;
-                        colors[y][x] = Color.DARK_GRAY;
-                    }
-    
-                }
-                else if (CONTAINER == 2){ // Container is an airfoil
-                    int length = 250;
-                    Vector2 leadingEdge = new Vector2(xCells/2 - 100, yCells/2); // Approximate center
-                
-                    Vector2 currentPos = new Vector2(x, y);
-                    double xRel = currentPos.x - leadingEdge.x;
-                    double yRel = currentPos.y - leadingEdge.y;
-                
-                    // NACA-like symmetric airfoil shape equation (approximation)
-                    double thickness = 0.12; // Adjust for different airfoil shapes
-                    double chord = length;
-                    double maxHeight = thickness * chord; 
-                
-                    double yUpper = (maxHeight / 0.2) * (0.2969 * Math.sqrt(xRel / chord) 
-                                    - 0.126 * (xRel / chord) 
-                                    - 0.3516 * Math.pow(xRel / chord, 2) 
-                                    + 0.2843 * Math.pow(xRel / chord, 3) 
-                                    - 0.1015 * Math.pow(xRel / chord, 4));
-                
-                    double yLower = -yUpper; // Symmetric airfoil
-                
-                    if (xRel >= 0 && xRel <= length && yRel >= yLower && yRel <= yUpper) {
-                        s[y][x] = 0;
-                        colors[y][x] = Color.DARK_GRAY;
+            //Nothing moves inside a wall, and walls show up gray
+            for(int x = 0; x < xCells; x++){
+                if(row[x] == 0){
+                    if(x != 0 && x != xCells-1 && y != 0 && y != yCells-1){
+                        u.set(y, x, 0.0f);
+                        v.set(y, x, 0.0f);
+                        d.set(y, x, 0.0f);
                     }
+                    pixels[y * xCells + x] = WALL_RGB;
+                }else{
+                    pixels[y * xCells + x] = FLUID_RGB;
                 }
-                
             }
         }
-        
-        
-    }    
+        gravityCells = scene.gravityCells(s);
+        dirty.markAll();
+    }
+
+    // Turns the real time mode on with the given budget per step, or off with 0
+    public void setFrameBudget(double budgetMs){
+        if(budgetMs <= 0){
+            deadline = null;
+            iterations = ITER;
+            advectionOrder = ADVECTION_ORDER;
+            renderStep = true;
+        }else if(deadline == null){
+            deadline = new Deadline(budgetMs, ITER, ADVECTION_ORDER);
+        }else{
+            deadline.setBudget(budgetMs);
+        }
+    }
+
+    // Charges the time since the last lap to a stage, when the real time mode is timing the step
+    void lap(int stage){
+        if(deadline != null){
+            deadline.lap(stage);
+        }
+    }
+
+    // Colors a cell, only marking its tile as changed when the color is actually different
+    void setPixel(int y, int x, int rgb){
+        int i = y * xCells + x;
+        if(pixels[i] != rgb){
+            pixels[i] = rgb;
+            dirty.mark(y, x);
+        }
+    }
 
     /*
         * Starting from Scratch, Iteration 21
         */
 
-    @SuppressWarnings("unused")
+    // Only the cells the scene touches (see Scene), nothing sweeps the whole grid
     public void addForces(float dt) {
-        for (int y = 0; y < yCells; y++) {
-            for (int x = 0; x < xCells; x++) {
-                if (SCENE == 0) { // GRAVITY TANK
-                    // ADDED POST RELEASE FIX: guard y>0 and scale by dt
-                    if (y > 0 && s[y][x] == 1 && s[y - 1][x] != 0) {
-                        v[y][x] += GRAVITY * dt;
-                    }
-                    if (y == yCells - 2 && x < 80 && x > 20) {
-                        d[y][x] += 0.5f;
-                    }
-                } else if (SCENE == 1) { // WIND TUNNEL
-                    if (x == 1 && y != 0 && y != yCells - 1) {
-                        v[y][x] = 0;
-                        u[y][x] = relativeWindSpeed; // keep inflow at x=1
-                        d[y][1] = 0.0f;
-                    }
-                } else if (SCENE == 2) {
-                    if (y == (int)(yCells / 2) && x == (int)(xCells / 2)) {
-                        u[y][x] = 5.0f;
-                        d[y][x] = 5.0f;
-                    }
+        Scene.Cells g = gravityCells;
+        float gravity = scene.gravity * dt;
+        for (int i = 0; i < g.size; i++) {
+            v.add(g.y[i], g.x[i], gravity);
+        }
+
+        if (scene.inflowSpeed != 0.0f) { // WIND TUNNEL, keep inflow at x=1
+            for (int y = 1; y < yCells - 1; y++) {
+                v.set(y, 1, 0);
+                u.set(y, 1, relativeWindSpeed);
+                if (visualization != 1) {
+                    d.set(y, 1, 0.0f);
+                }
+            }
+        }
+
+        for (Scene.Jet jet : scene.jets) {
+            Scene.Cells c = jet.cells;
+            for (int i = 0; i < c.size; i++) {
+                u.set(c.y[i], c.x[i], jet.u);
+                if (jet.setV) {
+                    v.set(c.y[i], c.x[i], jet.v);
+                }
+            }
+        }
+
+        if (visualization != 1) { // Tracer mode never advects or clears d, dye put in here would just pile up
+            emitDye(false);
+        }
+    }
+
+    // Puts in the dye of every emitter that goes in at this point of the step
+    void emitDye(boolean afterAdvection) {
+        for (Scene.Emitter emitter : scene.emitters) {
+            if (emitter.afterAdvection != afterAdvection) continue;
+            Scene.Cells c = emitter.cells;
+            for (int i = 0; i < c.size; i++) {
+                if (emitter.set) {
+                    d.set(c.y[i], c.x[i], emitter.amount);
+                } else {
+                    d.add(c.y[i], c.x[i], emitter.amount);
                 }
             }
         }
@@ -231,7 +372,7 @@ public class Liquid extends GameWindow{
 
         float pc = DENSITY * cellHeight * dt;
 
-        for(int i = 0; i < ITER; i ++){
+        for(int i = 0; i < iterations; i ++){
             for(int x = 0; x < xCells - 1; x++){
                 for(int y = 0; y < yCells - 1; y++){
 
@@ -241,16 +382,16 @@ public class Liquid extends GameWindow{
 
                     if(sSum == 0){continue;} // If Surrounded on all sides then don't calculate;
 
-                    float divergence = u[y][x + 1] - u[y][x] + v[y + 1][x] - v[y][x];
+                    float divergence = u.get(y, x + 1) - u.get(y, x) + v.get(y + 1, x) - v.get(y, x);
 
                     float pressure = -divergence / sSum;
                     pressure = pressure * OVER_RELAX_CONST;
-                    p[y][x] += pc * pressure;
+                    p.add(y, x, pc * pressure);
 
-                    u[y][x]     -=      s[y][x - 1]     * pressure;
-                    u[y][x + 1] +=      s[y][x + 1]     * pressure;
-                    v[y][x]     -=      s[y - 1][x]     * pressure;
-                    v[y + 1][x] +=      s[y + 1][x]     * pressure;
+                    u.add(y, x,         -s[y][x - 1]     * pressure);
+                    u.add(y, x + 1,      s[y][x + 1]     * pressure);
+                    v.add(y, x,         -s[y - 1][x]     * pressure);
+                    v.add(y + 1, x,      s[y + 1][x]     * pressure);
 
                 }
             }
@@ -262,54 +403,69 @@ public class Liquid extends GameWindow{
         // Horizontal velocity (u) boundaries
         for (int y = 0; y < yCells; y++) {
             // POST RELEASE FIX: left = inflow (if wind tunnel), otherwise copy interior
-            if (SCENE == 1) {
-                u[y][0] = relativeWindSpeed;
-                v[y][0] = 0f;
-                d[y][0] = d[y][1];
-                p[y][0] = p[y][1];
+            if (scene.inflowSpeed != 0.0f) {
+                u.set(y, 0, relativeWindSpeed);
+                v.set(y, 0, 0f);
+                if (visualization != 1) {
+                    d.set(y, 0, d.get(y, 1));
+                }
+                p.set(y, 0, p.get(y, 1));
             } else {
-                u[y][0] = u[y][1];
+                u.set(y, 0, u.get(y, 1));
             }
     
             // POST RELEASE FIX: right = outflow (zero-gradient)
-            u[y][xCells - 1] = u[y][xCells - 2];
-            v[y][xCells - 1] = v[y][xCells - 2];
-            d[y][xCells - 1] = d[y][xCells - 2];
-            p[y][xCells - 1] = p[y][xCells - 2];
+            u.set(y, xCells - 1, u.get(y, xCells - 2));
+            v.set(y, xCells - 1, v.get(y, xCells - 2));
+            if (visualization != 1) {
+                d.set(y, xCells - 1, d.get(y, xCells - 2));
+            }
+            p.set(y, xCells - 1, p.get(y, xCells - 2));
         }
     
         // Vertical velocity (v) + top/bottom no-slip
         for (int x = 0; x < xCells; x++) {
-            v[0][x] = 0;           // top boundary
-            v[yCells - 1][x] = 0;  // bottom boundary
-            u[0][x] = 0;
-            u[yCells - 1][x] = 0;
+            v.set(0, x, 0);           // top boundary
+            v.set(yCells - 1, x, 0);  // bottom boundary
+            u.set(0, x, 0);
+            u.set(yCells - 1, x, 0);
         }
     }
 
     public float sampleField(float x, float y, String type) {
+        switch (type) {
+            case "UFIELD": return sampleField(x, y, U_FIELD);
+            case "VFIELD": return sampleField(x, y, V_FIELD);
+            case "DFIELD": return sampleField(x, y, D_FIELD);
+            default:
+                System.out.println("NOT A CORRECT FIELD VALUE");
+                return 0.0f;
+        }
+    }
+
+    public float sampleField(float x, float y, int type) {
         // Lock down the boundaries
         x = Math.max(0, Math.min(x, (xCells - 1) * cellWidth));
         y = Math.max(0, Math.min(y, (yCells - 1) * cellHeight));
     
         float dx, dy;
-        float[][] sampleField;
+        Field sampleField;
     
         switch (type) {
-            case "UFIELD":
+            case U_FIELD:
                 // U values are stored at the middle of vertical edges (staggered in x)
                 dx = 0.0f; // Offset in x-direction
                 dy = 0.5f; // No offset in y-direction
                 sampleField = u;
                 break;
     
-            case "VFIELD":
+            case V_FIELD:
                 // V values are stored at the middle of horizontal edges (staggered in y)
                 dx = 0.5f; // No offset in x-direction
                 dy = 0.0f; // Offset in y-direction
                 sampleField = v;
                 break;
-            case "DFIELD":
+            case D_FIELD:
                 // V values are stored at the middle of horizontal edges (staggered in y)
                 dx = 0.5f; // No offset in x-direction
                 dy = 0.5f; // Offset in y-direction
@@ -338,10 +494,10 @@ public class Liquid extends GameWindow{
         float j = (staggeredY % cellHeight) / cellHeight;
     
         // Perform bilinear interpolation
-        float q11 = sampleField[yPos][xPos];
-        float q12 = sampleField[yPos + 1][xPos];
-        float q21 = sampleField[yPos][xPos + 1];
-        float q22 = sampleField[yPos + 1][xPos + 1];
+        float q11 = sampleField.get(yPos, xPos);
+        float q12 = sampleField.get(yPos + 1, xPos);
+        float q21 = sampleField.get(yPos, xPos + 1);
+        float q22 = sampleField.get(yPos + 1, xPos + 1);
 
         float r1 = q11 * (1 - i) + q21 * i; // Interpolate along x-axis
         float r2 = q12 * (1 - i) + q22 * i; // Interpolate along x-axis
@@ -351,63 +507,146 @@ public class Liquid extends GameWindow{
     }
     
     public float averageU(int x, int y){
-        return (u[y - 1][x] + u[y][x] + u[y - 1][x + 1] + u[y][x + 1]) * 0.25f;
+        return (u.get(y - 1, x) + u.get(y, x) + u.get(y - 1, x + 1) + u.get(y, x + 1)) * 0.25f;
     }
     public float averageV(int x, int y){
-        return (v[y][x - 1] + v[y][x] + v[y + 1][x - 1] + v[y + 1][x]) * 0.25f;
+        return (v.get(y, x - 1) + v.get(y, x) + v.get(y + 1, x - 1) + v.get(y + 1, x)) * 0.25f;
     }
 
     public void advectVelocities(float dt) {
-        // Make stable copies to sample from
-        float[][] u0 = new float[yCells][xCells];
-        float[][] v0 = new float[yCells][xCells];
-        for (int y = 0; y < yCells; y++) {
-            System.arraycopy(u[y], 0, u0[y], 0, xCells);
-            System.arraycopy(v[y], 0, v0[y], 0, xCells);
-        }
+        // u and v aren't written until the swap at the end, so they are already a stable copy to sample from
+        // Every cell only reads u / v and writes its own spot in newU / newV, so rows can be split over the workers
+        stepDt = dt;
+        Workers.forBands(1, yCells - 1, Workers.grainFor(yCells - 2), advectVelocityBand);
+
+        // Carry the border over and swap the new fields in (instead of copying every row back)
+        copyBorder(u, newU);
+        copyBorder(v, newV);
+        Field tempU = u; u = newU; newU = tempU;
+        Field tempV = v; v = newV; newV = tempV;
+        markSwapped(u, newU);
+        markSwapped(v, newV);
+    }
+
+    // Advects the velocities of rows [from, to)
+    void advectVelocityRows(int from, int to) {
+        float dt = stepDt;
+        boolean rk2 = advectionOrder == 2;
 
         // FIX: iterate only interior (avoid x-1, y-1 OOB access)
-        for (int y = 1; y < yCells - 1; y++) {
+        for (int y = from; y < to; y++) {
             for (int x = 1; x < xCells - 1; x++) {
-                if (s[y][x] == 0) { newU[y][x] = 0; newV[y][x] = 0; continue; }
+                if (s[y][x] == 0) { newU.set(y, x, 0); newV.set(y, x, 0); continue; }
 
                 // Advect u at vertical face (centered at (x, y+0.5))
                 float xPosU = x * cellWidth;
                 float yPosU = (y + 0.5f) * cellHeight;
-                float uVel = u0[y][x];
-                float vVel = 0.25f * (v0[y][x - 1] + v0[y][x] + v0[y + 1][x - 1] + v0[y + 1][x]);
+                float uVel = u.get(y, x);
+                float vVel = 0.25f * (v.get(y, x - 1) + v.get(y, x) + v.get(y + 1, x - 1) + v.get(y + 1, x));
+                if (rk2) { // Velocity halfway back instead of the one at the face
+                    float midX = xPosU - 0.5f * uVel * dt;
+                    float midY = yPosU - 0.5f * vVel * dt;
+                    uVel = sampleField(midX, midY, U_FIELD);
+                    vVel = sampleField(midX, midY, V_FIELD);
+                }
                 xPosU -= uVel * dt;
                 yPosU -= vVel * dt;
-                newU[y][x] = sampleField(xPosU, yPosU, "UFIELD"); // samples old field
+                newU.set(y, x, sampleField(xPosU, yPosU, U_FIELD)); // samples old field
 
                 // Advect v at horizontal face (centered at (x+0.5, y))
                 float xPosV = (x + 0.5f) * cellWidth;
                 float yPosV = y * cellHeight;
-                float uBar = 0.25f * (u0[y - 1][x] + u0[y][x] + u0[y - 1][x + 1] + u0[y][x + 1]);
-                float vBar = v0[y][x];
+                float uBar = 0.25f * (u.get(y - 1, x) + u.get(y, x) + u.get(y - 1, x + 1) + u.get(y, x + 1));
+                float vBar = v.get(y, x);
+                if (rk2) {
+                    float midX = xPosV - 0.5f * uBar * dt;
+                    float midY = yPosV - 0.5f * vBar * dt;
+                    uBar = sampleField(midX, midY, U_FIELD);
+                    vBar = sampleField(midX, midY, V_FIELD);
+                }
                 xPosV -= uBar * dt;
                 yPosV -= vBar * dt;
-                newV[y][x] = sampleField(xPosV, yPosV, "VFIELD"); // samples old field
+                newV.set(y, x, sampleField(xPosV, yPosV, V_FIELD)); // samples old field
             }
         }
+    }
+
+    void markSwapped(Field live, Field spare) {
+        live.setLive(true);
+        spare.setLive(false);
+    }
 
+    void copyBorder(Field from, Field to) {
+        for (int x = 0; x < xCells; x++) {
+            to.set(0, x, from.get(0, x));
+            to.set(yCells - 1, x, from.get(yCells - 1, x));
+        }
         for (int y = 1; y < yCells - 1; y++) {
-            System.arraycopy(newU[y], 1, u[y], 1, xCells - 2);
-            System.arraycopy(newV[y], 1, v[y], 1, xCells - 2);
-            Arrays.fill(newU[y], 1, xCells - 1, 0f);
-            Arrays.fill(newV[y], 1, xCells - 1, 0f);
+            to.set(y, 0, from.get(y, 0));
+            to.set(y, xCells - 1, from.get(y, xCells - 1));
         }
-}
+    }
+
+    Field allocateField(String name, boolean compact, int storage) {
+        if (storage == 2) {
+            return OffHeapField.map(Paths.get(MAPPED_DIR, name + ".field"), yCells, xCells, compact);
+        }
+        if (storage == 1) {
+            return new OffHeapField(yCells, xCells, compact);
+        }
+        return Field.create(yCells, xCells, compact);
+    }
     
     public void advectDensity(float dt) {
-        float[][] tempD = new float[yCells][xCells];
-
+        // Advect into newD (instead of a fresh array every step), walls and the border stay at zero
+        Field tempD = newD;
+        for (int x = 0; x < xCells; x++) {
+            tempD.set(0, x, 0.0f);
+            tempD.set(yCells - 1, x, 0.0f);
+        }
         for (int y = 1; y < yCells - 1; y++) {
-            for (int x = 1; x < xCells - 1; x++) {
-                if (s[y][x] == 0) continue; // Skip walls
+            tempD.set(y, 0, 0.0f);
+            tempD.set(y, xCells - 1, 0.0f);
+        }
+
+        // Advect in row bands, each band also keeps the dye / pressure range of its rows for the coloring
+        stepDt = dt;
+        Workers.forBands(1, yCells - 1, Workers.grainFor(yCells - 2), advectDensityBand);
+
+        lap(Deadline.ADVECT);
+        if (renderStep) { // Real time mode may skip coloring this step, the ranges are still kept up to date
+            colorDye = tempD;
+            paintRanges();
+        }
+        lap(Deadline.RENDER);
 
-                float uVel = 0.5f * (u[y][x] + u[y][x + 1]);
-                float vVel = 0.5f * (v[y][x] + v[y + 1][x]);
+        // --- 4) Commit dye field ---
+        newD = d;
+        d = tempD;
+        markSwapped(d, newD);
+    }
+
+    // Advects the dye of rows [from, to) into newD and records each row's dye / pressure range
+    void advectDensityRows(int from, int to) {
+        float dt = stepDt;
+        Field tempD = newD;
+        boolean rk2 = advectionOrder == 2;
+
+        for (int y = from; y < to; y++) {
+            float dMin = Float.MAX_VALUE, dMax = Float.MIN_VALUE;
+            float pMin = Float.MAX_VALUE, pMax = Float.MIN_VALUE;
+
+            for (int x = 1; x < xCells - 1; x++) {
+                if (s[y][x] == 0) { tempD.set(y, x, 0.0f); continue; } // Skip walls
+
+                float uVel = 0.5f * (u.get(y, x) + u.get(y, x + 1));
+                float vVel = 0.5f * (v.get(y, x) + v.get(y + 1, x));
+                if (rk2) {
+                    float midX = (x + 0.5f) * cellWidth  - 0.5f * uVel * dt;
+                    float midY = (y + 0.5f) * cellHeight - 0.5f * vVel * dt;
+                    uVel = sampleField(midX, midY, U_FIELD);
+                    vVel = sampleField(midX, midY, V_FIELD);
+                }
 
                 float xPos = (x + 0.5f) * cellWidth  - uVel * dt; 
                 float yPos = (y + 0.5f) * cellHeight - vVel * dt;
@@ -415,110 +654,139 @@ public class Liquid extends GameWindow{
                 xPos = Math.max(cellWidth  * 0.5f, Math.min(xPos, (xCells - 1.5f) * cellWidth));
                 yPos = Math.max(cellHeight * 0.5f, Math.min(yPos, (yCells - 1.5f) * cellHeight));
 
-                tempD[y][x] = sampleField(xPos, yPos, "DFIELD");
+                tempD.set(y, x, sampleField(xPos, yPos, D_FIELD));
+
+                float dv = tempD.get(y, x); // Read back, compact fields round on the way in
+                dMin = Math.min(dMin, dv);
+                dMax = Math.max(dMax, dv);
+                float pv = p.get(y, x);
+                pMin = Math.min(pMin, pv);
+                pMax = Math.max(pMax, pv);
             }
+
+            rowDMin[y] = dMin;
+            rowDMax[y] = dMax;
+            rowPMin[y] = pMin;
+            rowPMax[y] = pMax;
         }
+    }
 
-        // --- 2) Min/Max for normalization ---
-        float dMin = Float.MAX_VALUE, dMax = Float.MIN_VALUE;
-        float pMin = Float.MAX_VALUE, pMax = Float.MIN_VALUE;
-        for (int y = 1; y < yCells - 1; y++) {
+    // Color mapping tuning knobs 
+    final float PRESSURE_BLEND = 0.50f;   // how visible pressure is 
+    final float PRESSURE_SAT   = 1.00f;   // pressure tint saturation 
+    final float PRESSURE_VAL   = 0.25f;   // pressure tint brightness 
+    final float DYE_FLOOR      = 0.08f; 
+    final float DYE_GAMMA      = 0.70f;  
+
+    // Colors the image from the dye and pressure fields, with no dye (null) only the pressure tint is drawn
+    public void colorize(Field dye) {
+        colorDye = dye;
+        Workers.forBands(1, yCells - 1, Workers.grainFor(yCells - 2), rangeBand);
+        paintRanges();
+    }
+
+    // Finds the dye / pressure range of rows [from, to), for when the ranges didn't come out of advectDensity
+    void rangeRows(int from, int to) {
+        Field dye = colorDye;
+        for (int y = from; y < to; y++) {
+            float dMin = Float.MAX_VALUE, dMax = Float.MIN_VALUE;
+            float pMin = Float.MAX_VALUE, pMax = Float.MIN_VALUE;
             for (int x = 1; x < xCells - 1; x++) {
                 if (s[y][x] == 0) continue;
-                float dv = tempD[y][x];
-                dMin = Math.min(dMin, dv);
-                dMax = Math.max(dMax, dv);
-                float pv = p[y][x];
+                if (dye != null) {
+                    float dv = dye.get(y, x);
+                    dMin = Math.min(dMin, dv);
+                    dMax = Math.max(dMax, dv);
+                }
+                float pv = p.get(y, x);
                 pMin = Math.min(pMin, pv);
                 pMax = Math.max(pMax, pv);
             }
+            rowDMin[y] = dMin;
+            rowDMax[y] = dMax;
+            rowPMin[y] = pMin;
+            rowPMax[y] = pMax;
+        }
+    }
+
+    // Joins the row ranges (min / max don't care about order, so any split gives the same answer) and colors the image in row bands
+    void paintRanges() {
+        // --- 2) Min/Max for normalization ---
+        float dMin = Float.MAX_VALUE, dMax = Float.MIN_VALUE;
+        float pMin = Float.MAX_VALUE, pMax = Float.MIN_VALUE;
+        for (int y = 1; y < yCells - 1; y++) {
+            dMin = Math.min(dMin, rowDMin[y]);
+            dMax = Math.max(dMax, rowDMax[y]);
+            pMin = Math.min(pMin, rowPMin[y]);
+            pMax = Math.max(pMax, rowPMax[y]);
         }
         float eps = 1e-6f;
-        float dRange = Math.max(eps, dMax - dMin);
-        float pRange = Math.max(eps, pMax - pMin);
+        colorDMin = dMin;
+        colorPMin = pMin;
+        colorDRange = Math.max(eps, dMax - dMin);
+        colorPRange = Math.max(eps, pMax - pMin);
 
-        // --- 3) Color mapping: pressure as faint background, dye bright in front ---
-        // Tuning knobs 
-        final float PRESSURE_BLEND = 0.50f;   // how visible pressure is 
-        final float PRESSURE_SAT   = 1.00f;   // pressure tint saturation 
-        final float PRESSURE_VAL   = 0.25f;   // pressure tint brightness 
-        final float DYE_FLOOR      = 0.08f; 
-        final float DYE_GAMMA      = 0.70f;  
+        Workers.forBands(1, yCells - 1, Workers.grainFor(yCells - 2), colorBand);
+    }
 
-        for (int y = 1; y < yCells - 1; y++) {
+    // --- 3) Color mapping: pressure as faint background, dye bright in front ---
+    void colorRows(int from, int to) {
+        Field dye = colorDye;
+        float dMin = colorDMin, dRange = colorDRange;
+        float pMin = colorPMin, pRange = colorPRange;
+
+        for (int y = from; y < to; y++) {
             for (int x = 1; x < xCells - 1; x++) {
                 if (s[y][x] == 0) {
-                    colors[y][x] = Color.DARK_GRAY; // obstacle remains clearly visible
+                    setPixel(y, x, WALL_RGB); // obstacle remains clearly visible
                     continue;
                 }
 
                 // Normalize fields
-                float dv = tempD[y][x];
-                float dyeNorm = (dv - dMin) / dRange;           // 0..1
-                dyeNorm = Math.max(0f, Math.min(1f, dyeNorm));
-                // "Lit" dye brightness: boosted mid-tones, with a small floor
-                float dyeVal = DYE_FLOOR + (1f - DYE_FLOOR) * (float)Math.pow(dyeNorm, DYE_GAMMA);
+                float dyeNorm = 0f;
+                if (dye != null) {
+                    dyeNorm = (dye.get(y, x) - dMin) / dRange;   // 0..1
+                    dyeNorm = Math.max(0f, Math.min(1f, dyeNorm));
+                }
 
-                float presNorm = (p[y][x] - pMin) / pRange;     // 0..1
+                float presNorm = (p.get(y, x) - pMin) / pRange;     // 0..1
                 presNorm = Math.max(0f, Math.min(1f, presNorm));
 
-                // Pressure hue: low → blue (240°), high → red (0°)
-                float hue = (1.0f - presNorm) * (240f / 360f);  // map to H in [0..1]
-
-                // Compute pressure tint (dim & desaturated)
-                int presRGB = Color.HSBtoRGB(hue, PRESSURE_SAT, PRESSURE_VAL);
-                int pr = (presRGB >> 16) & 0xFF;
-                int pg = (presRGB >> 8)  & 0xFF;
-                int pb = (presRGB)       & 0xFF;
-
-                // Compute dye color (bright grayscale “in front”)
-                int dyeRGB = Color.HSBtoRGB(0f, 0f, dyeVal);
-                int dr = (dyeRGB >> 16) & 0xFF;
-                int dg = (dyeRGB >> 8)  & 0xFF;
-                int db = (dyeRGB)       & 0xFF;
-
-                // Pre-blend: final = mix(dye, pressureTint, PRESSURE_BLEND) but with dye dominant
-                float w = 1f - PRESSURE_BLEND; // ~0.88 dye, ~0.12 pressure
-                int r = Math.min(255, Math.max(0, Math.round(w * dr + (1f - w) * pr)));
-                int g = Math.min(255, Math.max(0, Math.round(w * dg + (1f - w) * pg)));
-                int b = Math.min(255, Math.max(0, Math.round(w * db + (1f - w) * pb)));
-
-                colors[y][x] = new Color(r, g, b);
+                setPixel(y, x, blendColor(dyeNorm, presNorm));
             }
         }
-
-        // --- 4) Commit dye field ---
-        d = tempD;
     }
 
-    public void densityHandler(int count){
-        if(SCENE == 1){
+    int blendColor(float dyeNorm, float presNorm) {
+        // "Lit" dye brightness: boosted mid-tones, with a small floor
+        float dyeVal = DYE_FLOOR + (1f - DYE_FLOOR) * (float)Math.pow(dyeNorm, DYE_GAMMA);
 
-            int streamSize = 15;
+        // Pressure hue: low → blue (240°), high → red (0°)
+        float hue = (1.0f - presNorm) * (240f / 360f);  // map to H in [0..1]
 
-            // System.out.println(CTER);
+        // Compute pressure tint (dim & desaturated)
+        int presRGB = Color.HSBtoRGB(hue, PRESSURE_SAT, PRESSURE_VAL);
+        int pr = (presRGB >> 16) & 0xFF;
+        int pg = (presRGB >> 8)  & 0xFF;
+        int pb = (presRGB)       & 0xFF;
 
-            // if(CTER % 10 == 0){
-            //     for(int y = 0; y < yCells; y++){
-            //         d[y][2] = DENSITY_STREAM_SPEED;
-            //     }
-            // }
+        // Compute dye color (bright grayscale “in front”)
+        int dyeRGB = Color.HSBtoRGB(0f, 0f, dyeVal);
+        int dr = (dyeRGB >> 16) & 0xFF;
+        int dg = (dyeRGB >> 8)  & 0xFF;
+        int db = (dyeRGB)       & 0xFF;
 
-            
-            for(int y = 0; y < yCells; y++){
-                if(y == (int) (yCells/2 + 5)){
-                    for(int i = 0; i < streamSize; i++){
-                        d[y + i][3] += DENSITY_STREAM_SPEED;
-                    }
-                }
-                if(y == (int) (yCells/2 - 5)){
-                    for(int i = 0; i < streamSize; i++){
-                        d[y - i][3] += DENSITY_STREAM_SPEED;
-                    }
-                }
-            }
-        }
+        // Pre-blend: final = mix(dye, pressureTint, PRESSURE_BLEND) but with dye dominant
+        float w = 1f - PRESSURE_BLEND; // ~0.88 dye, ~0.12 pressure
+        int r = Math.min(255, Math.max(0, Math.round(w * dr + (1f - w) * pr)));
+        int g = Math.min(255, Math.max(0, Math.round(w * dg + (1f - w) * pg)));
+        int b = Math.min(255, Math.max(0, Math.round(w * db + (1f - w) * pb)));
 
+        return (r << 16) | (g << 8) | b;
+    }
+
+    public void densityHandler(int count){
+        emitDye(true);
     }
 
     public float adjustDt(float dt) {
@@ -526,8 +794,8 @@ public class Liquid extends GameWindow{
         for (int y = 1; y < yCells - 1; y++) {
             for (int x = 1; x < xCells - 1; x++) {
                 if (s[y][x] == 0) continue;
-                maxU = Math.max(maxU, Math.abs(u[y][x]));
-                maxV = Math.max(maxV, Math.abs(v[y][x]));
+                maxU = Math.max(maxU, Math.abs(u.get(y, x)));
+                maxV = Math.max(maxV, Math.abs(v.get(y, x)));
             }
         }
         float cflX = (maxU * dt) / cellWidth;
@@ -546,32 +814,62 @@ public class Liquid extends GameWindow{
     }
     
     public void updateLiquid(double deltaTime) {
+        if (deadline != null) {
+            deadline.beginStep();
+            iterations = deadline.iterations;
+            advectionOrder = deadline.advectionOrder;
+            renderStep = deadline.renderThisStep;
+        }
+
         CTER++;
         float dt = (float) deltaTime;
         dt = adjustDt(dt);
+        time += dt;
+        relativeWindSpeed = scene.inflowSpeed(time);
     
         addForces(dt);
     
         // Clear pressure
-        for (int i = 0; i < xCells; i++) {
-            for (int j = 0; j < yCells; j++) {
-                p[j][i] = 0.0f;
-            }
-        }
+        p.fill(0.0f);
+        lap(Deadline.FORCES);
     
         // First projection 
         solveCompression(dt);
         boundaryFix(dt);
+        lap(Deadline.PROJECT);
     
         // Advect and then project once more to remove new divergence
         advectVelocities(dt);
         boundaryFix(dt);
+        lap(Deadline.ADVECT);
         solveCompression(dt);     // FIX: extra projection
         boundaryFix(dt);
-    
-        advectDensity(dt);
-        densityHandler(CTER);
+        lap(Deadline.PROJECT);
+    
+        if (visualization == 1) {
+            // Tracers instead of dye: pressure tint in the background, particles on top
+            tracers.update(dt);
+            lap(Deadline.ADVECT);
+            if (renderStep) {
+                colorize(null);
+                tracers.splat();
+            }
+            lap(Deadline.RENDER);
+        } else {
+            advectDensity(dt);
+            densityHandler(CTER);
+            lap(Deadline.FORCES);
+        }
         if (CTER >= 100) CTER = 0;
+
+        if (SHOW_STREAMLINES && renderStep && streamlines.update()) {
+            streamlines.markTraced(dirty); // Where the lines were and where they are now
+        }
+        lap(Deadline.RENDER);
+
+        if (deadline != null) {
+            deadline.endStep();
+        }
     }
         
     //Visualization Code!
@@ -585,8 +883,8 @@ public class Liquid extends GameWindow{
         for (int y = 0; y < yCells; y++) {
             for (int x = 0; x < xCells; x++) {
                 if (s[y][x] != 0) {
-                    pMin = Math.min(pMin, p[y][x]);
-                    pMax = Math.max(pMax, p[y][x]);
+                    pMin = Math.min(pMin, p.get(y, x));
+                    pMax = Math.max(pMax, p.get(y, x));
                 }
             }
         }
@@ -599,7 +897,7 @@ public class Liquid extends GameWindow{
                 }
 
                 // Normalize pressure to [0, 1] range
-                float normalizedPressure = (p[y][x] - pMin) / (pMax - pMin);
+                float normalizedPressure = (p.get(y, x) - pMin) / (pMax - pMin);
 
                 // Map normalized pressure to color range [0, 255]
                 int red = (int) (255 * normalizedPressure);
@@ -611,7 +909,7 @@ public class Liquid extends GameWindow{
                 blue = Math.min(255, Math.max(0, blue));
                 green = Math.min(255, Math.max(0, green));
 
-                colors[y][x] = new Color(red, green, blue);
+                setPixel(y, x, (red << 16) | (green << 8) | blue);
             }
         }
     }
@@ -627,10 +925,10 @@ public class Liquid extends GameWindow{
         for (int y = 0; y < yCells; y++) {
             for (int x = 0; x < xCells; x++) {
                 if (s[y][x] != 0) {
-                    dMin = Math.min(dMin, d[y][x]);
-                    dMax = Math.max(dMax, d[y][x]);
-                    pMin = Math.min(dMin, d[y][x]);
-                    pMax = Math.max(dMax, d[y][x]);
+                    dMin = Math.min(dMin, d.get(y, x));
+                    dMax = Math.max(dMax, d.get(y, x));
+                    pMin = Math.min(dMin, d.get(y, x));
+                    pMax = Math.max(dMax, d.get(y, x));
 
                 }
             }
@@ -644,7 +942,7 @@ public class Liquid extends GameWindow{
                 }
 
                 // Normalize pressure to [0, 1] range
-                float normalizedPressure = (d[y][x] - dMin) / (dMax - dMin);
+                float normalizedPressure = (d.get(y, x) - dMin) / (dMax - dMin);
 
                 // Map normalized pressure to color range [0, 255]
                 int red = (int) (255 * normalizedPressure);
@@ -656,7 +954,7 @@ public class Liquid extends GameWindow{
                 blue = Math.min(255, Math.max(0, blue));
                 green = Math.min(255, Math.max(0, green));
 
-                float normalizedDensity = (p[y][x] - pMin) / (pMax - pMin);
+                float normalizedDensity = (p.get(y, x) - pMin) / (pMax - pMin);
 
                 // Map normalized pressure to color range [0, 255]
                 red += (int) (255 * normalizedDensity);
@@ -673,17 +971,17 @@ public class Liquid extends GameWindow{
                 green = Math.min(255, Math.max(0, green));
 
 
-                colors[y][x] = new Color(red, green, blue);
+                setPixel(y, x, (red << 16) | (green << 8) | blue);
             }
         }
 
     }
 
     public Rectangle2D getCell(int i,int j){
-        return cells[i][j];
+        return new Rectangle2D.Float(j * cellWidth, i * cellHeight, cellWidth, cellHeight);
     }
     public Color getColor(int i, int j){
-        return colors[i][j];
+        return new Color(pixels[i * xCells + j]);
     }
     public int getHeight(){
         return yCells;
@@ -693,58 +991,19 @@ public class Liquid extends GameWindow{
     }
 
     public Line2D getHorizontalLine(int i, int j) {
-        float StartingPointX = (float) cells[i][j].getCenterX() - cellWidth/2;
-        float StartingPointY = (float) cells[i][j].getCenterY();
-        return new Line2D.Double(StartingPointX, StartingPointY, StartingPointX + u[i][j] * VECTOR_LINE_SCALE, StartingPointY);
+        float StartingPointX = j * cellWidth;
+        float StartingPointY = (i + 0.5f) * cellHeight;
+        return new Line2D.Double(StartingPointX, StartingPointY, StartingPointX + u.get(i, j) * VECTOR_LINE_SCALE, StartingPointY);
     }
     public Line2D getVerticalLine(int i, int j) {
-        float StartingPointX = (float) cells[i][j].getCenterX();
-        float StartingPointY = (float) cells[i][j].getCenterY() - cellHeight/2;
-        return new Line2D.Double(StartingPointX, StartingPointY, StartingPointX, StartingPointY + v[i][j] * VECTOR_LINE_SCALE);
+        float StartingPointX = (j + 0.5f) * cellWidth;
+        float StartingPointY = i * cellHeight;
+        return new Line2D.Double(StartingPointX, StartingPointY, StartingPointX, StartingPointY + v.get(i, j) * VECTOR_LINE_SCALE);
     }
     
     public void drawStreamlines(Graphics2D g) {
-        // Parameters from JS code
-        float segLen = cellHeight * 0.5f; // Equivalent to f.h * 0.2
-        int numSegs = 100; // Number of segments per streamline
-    
-        // Set stroke color (equivalent to c.strokeStyle = "#000000")
-        g.setColor(Color.WHITE);
-    
-        // Loop through the grid (equivalent to JS loops)
-        for (int i = 1; i < xCells - 1; i += segLen) {
-            for (int j = 1; j < yCells - 1; j += segLen) {
-                // Starting point of the streamline (equivalent to (i + 0.5) * f.h)
-                float x = (i + 0.5f) * cellWidth;
-                float y = (j + 0.5f) * cellHeight;
-    
-                // Begin a new path (equivalent to c.beginPath())
-                GeneralPath path = new GeneralPath();
-                path.moveTo(x, y); // Equivalent to c.moveTo(cX(x), cY(y))
-    
-                // Draw the streamline segments
-                for (int n = 0; n < numSegs; n++) {
-                    // Sample the velocity field (equivalent to f.sampleField(x, y, U_FIELD))
-                    float uVel = sampleField(x, y, "UFIELD");
-                    float vVel = sampleField(x, y, "VFIELD");
-    
-                    // Update the position (equivalent to x += u * 0.01; y += v * 0.01)
-                    x += uVel * 0.1;
-                    y += vVel * 0.1f;
-    
-                    // Break if the streamline goes out of bounds (equivalent to if (x > f.numX * f.h))
-                    if (x > xCells * cellWidth) {
-                        break;
-                    }
-    
-                    // Add a line segment to the path (equivalent to c.lineTo(cX(x), cY(y)))
-                    path.lineTo(x, y);
-                }
-    
-                // Draw the streamline (equivalent to c.stroke())
-                g.draw(path);
-            }
-        }
+        // Traced in parallel into cached buffers by Streamlines, just draw the last trace
+        streamlines.draw(g);
     }
 }
 
@@ -2,7 +2,26 @@
 import javax.swing.*;
 
 public class Main { 
+
+    // true --> RenderCanvas draws from its own loop, paced to the screen (see RenderCanvas)
+    // false --> the old GameWindow panel, repainted through Swing, only the dirty tiles (see DirtyTiles)
+    // Off by default: a BufferStrategy can only show the whole back buffer, so active rendering blits the full frame
+    // every refresh, which is exactly what is slow on remote desktops / software pipelines. Turn on with -Dfluid.active=true
+    static final boolean ACTIVE_RENDERING = false;
+
+    static final int STREAM_PORT = 5555;
+    static final int STREAM_FPS = 60;
+
     public static void main(String args[]) throws Exception {
+        // java Main stream [port] --> no window, frames go out over the network instead (see FrameServer / FrameViewer)
+        if (args.length > 0 && args[0].equals("stream")) {
+            stream(args.length > 1 ? Integer.parseInt(args[1]) : STREAM_PORT);
+            return;
+        }
+
+        // Has to be set before anything touches AWT, after that Java2D has already picked its pipeline
+        System.setProperty("sun.java2d.opengl", "true");
+
         /*
          * Setting up the JFrame Window
          * Resizeable --> False
@@ -11,8 +30,6 @@ public class Main {
          * Window Visibility --> True
          */
         JFrame window = new JFrame();
-        
-        System.setProperty("sun.java2d.opengl", "true");
 
         // Closing the window on the X button click
         window.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
@@ -23,6 +40,17 @@ public class Main {
         window.setTitle("Fluid Simulation");
         // Addding the window to the window?
 
+        if (Boolean.parseBoolean(System.getProperty("fluid.active", Boolean.toString(ACTIVE_RENDERING)))) {
+            RenderCanvas canvas = new RenderCanvas();
+            window.add(canvas);
+
+            // Pack, show, then the buffer strategy can be made and the render loop started
+            window.pack();
+            window.setVisible(true);
+            canvas.requestFocus();
+            canvas.start();
+            return;
+        }
 
         GameWindow gameWindow = new GameWindow();
         window.add(gameWindow);
@@ -35,4 +63,29 @@ public class Main {
         gameWindow.startWindowThread();
     }
 
+    static void stream(int port) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        Liquid l = GameWindow.l;
+
+        FrameServer server = new FrameServer(port, l.xCells, l.yCells);
+        server.start();
+        System.out.println("Streaming on port " + server.getPort());
+
+        double dt = 1.0 / STREAM_FPS;
+        long frameNanos = 1000000000L / STREAM_FPS;
+        long nextFrame = System.nanoTime();
+        while (true) {
+            l.updateLiquid(dt);
+            server.publish(l.pixels);
+
+            nextFrame += frameNanos;
+            long wait = nextFrame - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            } else {
+                nextFrame = System.nanoTime(); // Running behind, don't try to catch up
+            }
+        }
+    }
+
 }
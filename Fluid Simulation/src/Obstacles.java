@@ -0,0 +1,370 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/*
+ * Obstacle Geometry
+ *
+ *      - Every container is rasterized straight from its shape, one row at a time, in parallel
+ *      - Solid cells are filled as spans per row, so there is no per cell test (and no Vector2 per cell)
+ *      - Also builds a signed distance field, distance in cells to the obstacle surface, negative inside
+ *        (nothing reads it yet, it is there for sub cell wall tests later, the solver and the renderers only use the mask)
+ *      - The result is cached on disk, keyed by VERSION, the shape parameters and grid size, so startup just reads it back
+ *
+ *      CONTAINER 0: NONE
+ *      CONTAINER 1: SPHERE
+ *      CONTAINER 2: AIRFOIL (NACA 00xx)
+ *      CONTAINER 3: PEGS
+ *      CONTAINER 4: CUBE
+ *
+ *      The airfoil distance is measured vertically to the surface (exact enough near it), the rest are exact.
+ */
+
+public class Obstacles {
+
+    static final int NONE = 0;
+    static final int SPHERE = 1;
+    static final int AIRFOIL = 2;
+    static final int PEGS = 3;
+    static final int CUBE = 4;
+
+    /*
+     * CHANGEABLE PARAMETERS (in cells)
+     */
+
+    static final int SPHERE_RADIUS = 20;
+    static final int SPHERE_PADDING = 3;
+    static final int SPHERE_OFFSET = 20;        // Left of the middle of the tunnel
+
+    static final int AIRFOIL_CHORD = 250;
+    static final double AIRFOIL_THICKNESS = 0.12;
+    static final int AIRFOIL_OFFSET = 100;      // Leading edge, left of the middle
+
+    static final int PEG_RADIUS = 6;
+    static final int PEG_SPACING = 40;
+    static final int PEG_COLUMNS = 3;
+    static final int PEG_ROWS = 5;
+    static final int PEG_OFFSET = 60;           // First column, left of the middle
+
+    static final int CUBE_HALF_SIZE = 20;
+    static final int CUBE_OFFSET = 20;          // Left of the middle
+
+    static final boolean USE_CACHE = true;
+    static final Path CACHE_DIR = Paths.get(System.getProperty("java.io.tmpdir"), "fluid-obstacles");
+
+    static final int MAGIC = 0x4F425331; // "OBS1"
+    static final int VERSION = 2;        // Bump whenever rasterRow (or the file layout) changes, old caches are then ignored
+
+    //DO NOT TOUCH!
+
+    final int container;
+    final int xCells;
+    final int yCells;
+
+    final byte[] solid;   // 1 --> obstacle, row by row
+    final float[] sdf;    // Signed distance to the obstacle surface, row by row
+
+    // Peg centers, staggered every other column
+    int[] pegX = new int[0];
+    int[] pegY = new int[0];
+
+    // Airfoil half thickness per column, negative outside of the chord
+    double[] profile;
+
+    Obstacles(int container, int xCells, int yCells) {
+        this.container = container;
+        this.xCells = xCells;
+        this.yCells = yCells;
+        this.solid = new byte[xCells * yCells];
+        this.sdf = new float[xCells * yCells];
+    }
+
+    // Loads the obstacle from the cache, building (and caching) it if it isn't there yet
+    public static Obstacles load(int container, int xCells, int yCells) {
+        Obstacles o = new Obstacles(container, xCells, yCells);
+        if (!USE_CACHE) {
+            o.build();
+            return o;
+        }
+
+        Path file = CACHE_DIR.resolve(o.key() + ".obs");
+        if (o.read(file)) {
+            return o;
+        }
+        o.build();
+        o.write(file);
+        return o;
+    }
+
+    public boolean isSolid(int y, int x) {
+        return solid[y * xCells + x] != 0;
+    }
+
+    public float distance(int y, int x) {
+        return sdf[y * xCells + x];
+    }
+
+    // Every parameter that changes the shape goes in here, so changing one never loads a stale mask (VERSION covers the code)
+    String key() {
+        String shape;
+        switch (container) {
+            case SPHERE:
+                shape = "sphere_r" + SPHERE_RADIUS + "+" + SPHERE_PADDING + "_o" + SPHERE_OFFSET;
+                break;
+            case AIRFOIL:
+                shape = "airfoil_c" + AIRFOIL_CHORD + "_t" + AIRFOIL_THICKNESS + "_o" + AIRFOIL_OFFSET;
+                break;
+            case PEGS:
+                shape = "pegs_r" + PEG_RADIUS + "_s" + PEG_SPACING + "_" + PEG_COLUMNS + "x" + PEG_ROWS + "_o" + PEG_OFFSET;
+                break;
+            case CUBE:
+                shape = "cube_h" + CUBE_HALF_SIZE + "_o" + CUBE_OFFSET;
+                break;
+            default:
+                shape = "none";
+        }
+        return "v" + VERSION + "_" + shape + "_" + xCells + "x" + yCells;
+    }
+
+    void build() {
+        if (container == PEGS) {
+            pegX = new int[PEG_COLUMNS * PEG_ROWS];
+            pegY = new int[PEG_COLUMNS * PEG_ROWS];
+            for (int c = 0; c < PEG_COLUMNS; c++) {
+                for (int r = 0; r < PEG_ROWS; r++) {
+                    int k = c * PEG_ROWS + r;
+                    pegX[k] = xCells / 2 - PEG_OFFSET + c * PEG_SPACING;
+                    pegY[k] = yCells / 2 + (r - PEG_ROWS / 2) * PEG_SPACING + (c % 2) * PEG_SPACING / 2;
+                }
+            }
+        }
+        if (container == AIRFOIL) {
+            // The thickness only depends on the column, so it is worked out once per column instead of per cell
+            profile = new double[xCells];
+            int lead = xCells / 2 - AIRFOIL_OFFSET;
+            for (int x = 0; x < xCells; x++) {
+                double xRel = x - lead;
+                profile[x] = (xRel >= 0 && xRel <= AIRFOIL_CHORD) ? airfoilHalfThickness(xRel) : -1.0;
+            }
+        }
+
+        Workers.forBands(0, yCells, Workers.grainFor(yCells), (from, to) -> {
+            for (int y = from; y < to; y++) {
+                rasterRow(y);
+            }
+        });
+    }
+
+    // NACA-like symmetric airfoil shape equation (approximation)
+    static double airfoilHalfThickness(double xRel) {
+        double chord = AIRFOIL_CHORD;
+        double maxHeight = AIRFOIL_THICKNESS * chord;
+        double t = xRel / chord;
+        return (maxHeight / 0.2) * (0.2969 * Math.sqrt(t)
+                - 0.126 * t
+                - 0.3516 * Math.pow(t, 2)
+                + 0.2843 * Math.pow(t, 3)
+                - 0.1015 * Math.pow(t, 4));
+    }
+
+    void rasterRow(int y) {
+        int row = y * xCells;
+
+        switch (container) {
+            case SPHERE: {
+                int cx = xCells / 2 - SPHERE_OFFSET;
+                int cy = yCells / 2;
+                int r = SPHERE_RADIUS + SPHERE_PADDING;
+                fillCircleSpan(row, y, cx, cy, r);
+                for (int x = 0; x < xCells; x++) {
+                    sdf[row + x] = circleDistance(x, y, cx, cy, r);
+                }
+                break;
+            }
+            case AIRFOIL: {
+                int lead = xCells / 2 - AIRFOIL_OFFSET;
+                int cy = yCells / 2;
+                double yRel = Math.abs(y - cy);
+                // Only the rows inside the thickest part can have a span, and only inside the chord
+                if (yRel <= AIRFOIL_THICKNESS * AIRFOIL_CHORD) {
+                    int x0 = Math.max(0, lead);
+                    int x1 = Math.min(xCells - 1, lead + AIRFOIL_CHORD);
+                    for (int x = x0; x <= x1; x++) {
+                        if (yRel <= profile[x]) {
+                            solid[row + x] = 1;
+                        }
+                    }
+                }
+                for (int x = 0; x < xCells; x++) {
+                    double xRel = x - lead;
+                    float dist;
+                    if (xRel < 0) {
+                        dist = (float) Math.sqrt(xRel * xRel + yRel * yRel);
+                    } else if (xRel > AIRFOIL_CHORD) {
+                        dist = (float) Math.sqrt((xRel - AIRFOIL_CHORD) * (xRel - AIRFOIL_CHORD) + yRel * yRel);
+                    } else {
+                        dist = (float) (yRel - profile[x]);
+                    }
+                    sdf[row + x] = dist;
+                }
+                break;
+            }
+            case PEGS: {
+                // Every peg is the same size, so the closest center gives the distance (one sqrt per cell)
+                Arrays.fill(sdf, row, row + xCells, Float.MAX_VALUE);
+                for (int k = 0; k < pegX.length; k++) {
+                    fillCircleSpan(row, y, pegX[k], pegY[k], PEG_RADIUS);
+                    float dy = y - pegY[k];
+                    for (int x = 0; x < xCells; x++) {
+                        float dx = x - pegX[k];
+                        sdf[row + x] = Math.min(sdf[row + x], dx * dx + dy * dy);
+                    }
+                }
+                for (int x = 0; x < xCells; x++) {
+                    sdf[row + x] = (float) Math.sqrt(sdf[row + x]) - PEG_RADIUS;
+                }
+                break;
+            }
+            case CUBE: {
+                int cx = xCells / 2 - CUBE_OFFSET;
+                int cy = yCells / 2;
+                int h = CUBE_HALF_SIZE;
+                if (Math.abs(y - cy) <= h) {
+                    int x0 = Math.max(0, cx - h);
+                    int x1 = Math.min(xCells - 1, cx + h);
+                    if (x0 <= x1) {
+                        Arrays.fill(solid, row + x0, row + x1 + 1, (byte) 1);
+                    }
+                }
+                float qy = Math.abs(y - cy) - h;
+                for (int x = 0; x < xCells; x++) {
+                    float qx = Math.abs(x - cx) - h;
+                    float ox = Math.max(qx, 0);
+                    float oy = Math.max(qy, 0);
+                    float outside = (float) Math.sqrt(ox * ox + oy * oy);
+                    float inside = Math.min(Math.max(qx, qy), 0);
+                    sdf[row + x] = outside + inside;
+                }
+                break;
+            }
+            default:
+                Arrays.fill(sdf, row, row + xCells, Float.MAX_VALUE);
+        }
+    }
+
+    // Fills the cells of this row that are within r of (cx, cy)
+    void fillCircleSpan(int row, int y, int cx, int cy, int r) {
+        int dy = y - cy;
+        int rest = r * r - dy * dy;
+        if (rest < 0) {
+            return;
+        }
+        int half = (int) Math.sqrt(rest);
+        while ((half + 1) * (half + 1) <= rest) half++;
+        while (half * half > rest) half--;
+
+        int x0 = Math.max(0, cx - half);
+        int x1 = Math.min(xCells - 1, cx + half);
+        if (x0 <= x1) {
+            Arrays.fill(solid, row + x0, row + x1 + 1, (byte) 1);
+        }
+    }
+
+    static float circleDistance(int x, int y, int cx, int cy, int r) {
+        float dx = x - cx;
+        float dy = y - cy;
+        return (float) Math.sqrt(dx * dx + dy * dy) - r;
+    }
+
+    /*
+     * Cache File
+     *      - MAGIC, VERSION, key length, key, xCells, yCells, then the mask bytes and the distance floats
+     */
+
+    boolean read(Path file) {
+        if (!Files.isReadable(file)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            byte[] expectedKey = key().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer header = ByteBuffer.allocate(20 + expectedKey.length).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != expectedKey.length) {
+                return false;
+            }
+            byte[] key = new byte[expectedKey.length];
+            header.get(key);
+            if (!Arrays.equals(key, expectedKey) || header.getInt() != xCells || header.getInt() != yCells) {
+                return false;
+            }
+
+            ByteBuffer mask = ByteBuffer.wrap(solid);
+            readFully(channel, mask);
+
+            ByteBuffer distances = ByteBuffer.allocateDirect(sdf.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, distances);
+            distances.flip();
+            distances.asFloatBuffer().get(sdf);
+            return true;
+        } catch (IOException e) {
+            return false; // A broken cache just means building it again
+        }
+    }
+
+    void write(Path file) {
+        Path temp = null;
+        try {
+            Files.createDirectories(CACHE_DIR);
+            temp = Files.createTempFile(CACHE_DIR, "obs", ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                byte[] key = key().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer header = ByteBuffer.allocate(20 + key.length).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putInt(key.length).put(key).putInt(xCells).putInt(yCells);
+                header.flip();
+                writeFully(channel, header);
+                writeFully(channel, ByteBuffer.wrap(solid));
+
+                ByteBuffer distances = ByteBuffer.allocateDirect(sdf.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+                distances.asFloatBuffer().put(sdf);
+                writeFully(channel, distances);
+            }
+            // Move it into place in one go so another run never reads half a file
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+        } catch (IOException e) {
+            System.out.println("Could not cache obstacle " + key() + ": " + e.getMessage());
+        } finally {
+            // Left over when anything above failed (no atomic move here, disk full ...), don't leave one per startup
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // Nothing more to do
+                }
+            }
+        }
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Cache file is too short");
+            }
+        }
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
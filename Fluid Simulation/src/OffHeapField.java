@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Field stored outside the Java heap, so huge grids don't need a huge heap and the GC never has to look at them.
+ *
+ *      - The values start on a 64 byte (cache line) boundary
+ *      - Can hold floats or half floats, same as FloatField / HalfField
+ *      - Can be backed by a memory mapped file, other programs can then map the same file and read the live field
+ *      - One ByteBuffer (or mapping) can't go past 2 GB, so a field is at most about 23k x 23k floats or 32k x 32k half floats
+ *
+ *      Mapped File Layout (all ints in the byte order given in the header)
+ *      - 0  : MAGIC ("FLD1")
+ *      - 4  : VERSION
+ *      - 8  : height (rows)
+ *      - 12 : width (columns)
+ *      - 16 : bytes per value (4 --> float, 2 --> half float)
+ *      - 20 : byte order of the values (0 --> big endian, 1 --> little endian)
+ *      - 24 : live flag, 1 while this file holds the current field (the solver swaps fields with their temp copy)
+ *      - 64 : the values, row by row
+ */
+
+public class OffHeapField extends Field {
+
+    static final int ALIGNMENT = 64;
+    static final int HEADER_BYTES = 64;
+    static final int MAGIC = 0x464C4431;
+    static final int VERSION = 1;
+
+    final ByteBuffer data;
+    final FloatBuffer floats; // Set when storing floats
+    final ShortBuffer shorts; // Set when storing half floats
+    final boolean half;
+    final ByteBuffer header;  // Only set for mapped fields
+
+    // Allocates the field in native memory
+    public OffHeapField(int height, int width, boolean half) {
+        this(ByteBuffer.allocateDirect(checkSize(alignUp(valueBytes(height, width, half)) + ALIGNMENT, height, width)).alignedSlice(ALIGNMENT),
+                null, height, width, half);
+    }
+
+    static long valueBytes(int height, int width, boolean half) {
+        return (long) height * width * (half ? 2 : 4);
+    }
+
+    // alignedSlice cuts both ends down to the alignment, so the size has to be a whole number of cache lines
+    static long alignUp(long bytes) {
+        return (bytes + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    // Buffers are indexed with ints, past that the grid needs splitting up
+    static int checkSize(long bytes, int height, int width) {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A " + width + "x" + height + " off heap field needs " + bytes
+                    + " bytes, one buffer holds at most " + Integer.MAX_VALUE + " (use half floats or a smaller grid)");
+        }
+        return (int) bytes;
+    }
+
+    OffHeapField(ByteBuffer data, ByteBuffer header, int height, int width, boolean half) {
+        super(height, width);
+        this.half = half;
+        this.header = header;
+        this.data = data.order(ByteOrder.nativeOrder());
+        this.floats = half ? null : this.data.asFloatBuffer();
+        this.shorts = half ? this.data.asShortBuffer() : null;
+    }
+
+    // Creates (or reuses) the given file and maps the field straight onto it
+    public static OffHeapField map(Path file, int height, int width, boolean half) {
+        long valueBytes = valueBytes(height, width, half);
+        checkSize(HEADER_BYTES + valueBytes, height, width);
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + valueBytes);
+                mapped.order(ByteOrder.nativeOrder());
+                mapped.putInt(0, MAGIC);
+                mapped.putInt(4, VERSION);
+                mapped.putInt(8, height);
+                mapped.putInt(12, width);
+                mapped.putInt(16, half ? 2 : 4);
+                mapped.putInt(20, ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 0);
+                mapped.putInt(24, 1);
+
+                // Mappings start on a page, so the values after the header are cache line aligned too
+                ByteBuffer values = mapped.position(HEADER_BYTES).slice();
+                return new OffHeapField(values, mapped, height, width, half);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not map field file " + file, e);
+        }
+    }
+
+    @Override
+    public float get(int y, int x) {
+        int i = y * width + x;
+        if (half) {
+            return HalfField.DECODE[shorts.get(i) & 0xffff];
+        }
+        return floats.get(i);
+    }
+
+    @Override
+    public void set(int y, int x, float value) {
+        int i = y * width + x;
+        if (half) {
+            shorts.put(i, HalfField.toHalf(value));
+        } else {
+            floats.put(i, value);
+        }
+    }
+
+    @Override
+    public void add(int y, int x, float value) {
+        int i = y * width + x;
+        if (half) {
+            shorts.put(i, HalfField.toHalf(HalfField.DECODE[shorts.get(i) & 0xffff] + value));
+        } else {
+            floats.put(i, floats.get(i) + value);
+        }
+    }
+
+    @Override
+    public void setLive(boolean live) {
+        if (header != null) {
+            header.putInt(24, live ? 1 : 0);
+        }
+    }
+
+    @Override
+    public long bytes() {
+        return (long) height * width * (half ? 2 : 4);
+    }
+}
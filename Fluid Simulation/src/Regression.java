@@ -0,0 +1,409 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Regression Harness
+ *
+ *      Runs every scene with every container for a fixed number of steps and checks the fields against golden snapshots,
+ *      so an optimization can be judged on speed and accuracy together.
+ *
+ *      Usage: java -Djava.awt.headless=true Regression [--record | --record-reduced] [--compact] [--threads N] [--steps N] [--tolerance X] [scene ...]
+ *
+ *      - --record  --> run and save the full fields as local goldens in golden/local/ (do this on a build you trust)
+ *      - --record-reduced --> run and save sampled goldens in golden/, these are the checked in ones
+ *      - --compact --> run with half float dye / pressure, to see what reduced precision costs
+ *      - --threads --> worker threads for the run (see Workers)
+ *      - --tolerance --> relative error that still passes (default TOLERANCE)
+ *
+ *      Goldens live in golden/ next to scenes/, one file per scene and container
+ *      - golden/local/ --> full fields, recorded on this machine, not checked in (too big), used first when there is one
+ *      - golden/       --> checked in, every scene with every container at DEFAULT_STEPS, every SAMPLE_STRIDE-th cell
+ *                          in row order (a prime, so the samples land on every row and column, odd and even),
+ *                          plus a hash of every full field and the full divergence
+ *      - A scene and container with neither is a failure, every pair is meant to be covered
+ *      - Against a sampled golden exact still means bit for bit (the hashes). The errors are per cell but only over the
+ *        samples, so they can miss the worst cell. A run that isn't exact therefore can't pass on a sampled golden, it
+ *        shows "unjudged" (and fails), record full goldens with --record on a trusted build to judge it against the tolerance
+ *
+ *      Every run starts from the same state (fresh fields, same container, fixed DT), so a run is repeatable bit for bit.
+ *      Before it is timed, each scene and container runs WARMUP_STEPS on a throwaway simulation so the JIT has settled
+ *      (otherwise the first one pays for compiling everything and its steps/s means nothing).
+ *
+ *      Goldens are always dye mode. After them every scene with emitters runs once more in tracer mode (VISUALIZATION 1),
+ *      in its own container, and passes when
+ *      - d stayed exactly 0 everywhere (tracer mode has no dye grid, nothing may write into it)
+ *      - particles are alive, no more than were emitted, and every one is inside the grid with an age in [0, MAX_AGE]
+ *
+ *      Columns
+ *      - steps/s, speed --> steps per second, and how that compares to when the golden was recorded (same machine only)
+ *      - field          --> one row each for u v p d
+ *      - L2, Linf, rel  --> root mean square and largest difference to the golden, and Linf divided by the largest golden value
+ *      - div L2, Linf   --> divergence left in the velocity field (should stay near the golden's, which is shown after)
+ *      - result         --> exact (same bits), within (every rel under the tolerance, full goldens only), unjudged or FAIL
+ *                           (the exit code is 1 unless everything is exact or within)
+ */
+
+public class Regression {
+
+    static final String[] SCENES = {"tank", "windtunnel", "injector", "wave"};
+    static final int CONTAINERS = Scene.CONTAINER_NAMES.length;
+
+    static final int DEFAULT_STEPS = 50;
+    static final int WARMUP_STEPS = 20;
+    static final double DT = 1.0 / 144.0;
+    static final double TOLERANCE = 1e-3;           // Relative Linf error that still passes
+    static final double DIVERGENCE_TOLERANCE = 2.0; // Divergence can grow by this factor over the golden's
+
+    static final String GOLDEN_DIR = "golden";
+    static final String LOCAL_DIR = "local";
+    static final int SAMPLE_STRIDE = 101;
+    static final int MAGIC = 0x474C4433; // "GLD3"
+
+    static final String[] FIELD_NAMES = {"u", "v", "p", "d"};
+
+    // What one run leaves behind, either just run or read from a golden file
+    static class Snapshot {
+        int steps;
+        int xCells;
+        int yCells;
+        int stride = 1;                                     // Every stride-th cell is kept, 1 --> the full fields
+        double stepsPerSecond;
+        long[] hashes = new long[FIELD_NAMES.length];      // Of the full fields, bit for bit
+        double[] divergence;                                // L2 and Linf of the full velocity field
+        float[][] fields = new float[FIELD_NAMES.length][]; // u, v, p, d row by row, xCells * yCells / stride rounded up
+    }
+
+    public static void main(String args[]) throws IOException {
+        boolean record = false;
+        boolean reduced = false;
+        boolean compact = false;
+        int steps = DEFAULT_STEPS;
+        double tolerance = TOLERANCE;
+        List<String> scenes = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--record": record = true; break;
+                case "--record-reduced": record = true; reduced = true; break;
+                case "--compact": compact = true; break;
+                case "--threads": Workers.setParallelism(Integer.parseInt(args[++i])); break;
+                case "--steps": steps = Integer.parseInt(args[++i]); break;
+                case "--tolerance": tolerance = Double.parseDouble(args[++i]); break;
+                default: scenes.add(args[i]);
+            }
+        }
+        if (scenes.isEmpty()) {
+            scenes.addAll(List.of(SCENES));
+        }
+
+        System.out.println((record ? "Recording" : "Checking") + " " + steps + " steps, " + (compact ? "compact" : "float") + " fields, "
+                + Workers.getParallelism() + " threads");
+        System.out.println();
+        System.out.printf("%-11s %-8s %9s %7s  %-5s %10s %10s %10s %10s %10s %10s  %s%n",
+                "scene", "shape", "steps/s", "speed", "field", "L2", "Linf", "rel", "div L2", "div Linf", "gold L2", "result");
+
+        boolean failed = false;
+        for (String name : scenes) {
+            for (int container = 0; container < CONTAINERS; container++) {
+                Scene scene = Scene.load(name);
+                String shape = Scene.CONTAINER_NAMES[container];
+
+                Snapshot gold = null;
+                if (!record) {
+                    gold = read(goldenFile(name, container, true));
+                    if (gold == null) {
+                        gold = read(goldenFile(name, container, false));
+                    }
+                    if (gold == null) {
+                        System.out.printf("%-11s %-8s %9s %7s  %s%n", name, shape, "-", "-", "no golden, FAIL (record one first)");
+                        failed = true;
+                        continue;
+                    }
+                }
+
+                scene.container = container;
+                run(new Liquid(scene, compact, 0, 0), WARMUP_STEPS);
+                Liquid l = new Liquid(scene, compact, 0, 0);
+                Snapshot run = run(l, steps);
+                double[] divergence = run.divergence;
+
+                if (record) {
+                    write(goldenFile(name, container, !reduced), reduced ? sample(l, run, SAMPLE_STRIDE) : run);
+                    System.out.printf("%-11s %-8s %9.2f %7s  %-5s %10s %10s %10s %10.3g %10.3g %10s  %s%n",
+                            name, shape, run.stepsPerSecond, "-", "-", "-", "-", "-", divergence[0], divergence[1], "-", "recorded");
+                    continue;
+                }
+
+                if (gold.steps != run.steps || gold.xCells != run.xCells || gold.yCells != run.yCells) {
+                    System.out.printf("%-11s %-8s %9.2f %7s  %s%n", name, shape, run.stepsPerSecond, "-", "golden was recorded with other steps / grid");
+                    failed = true;
+                    continue;
+                }
+
+                // Compared on the golden's cells
+                Snapshot compared = sample(l, run, gold.stride);
+                boolean[] fluid = fluidSamples(l, gold.stride);
+                double[][] errors = new double[FIELD_NAMES.length][];
+                double worst = 0.0;
+                boolean exact = true;
+                for (int f = 0; f < FIELD_NAMES.length; f++) {
+                    errors[f] = compare(fluid, gold.fields[f], compared.fields[f]);
+                    worst = Math.max(worst, errors[f][2]);
+                    exact &= gold.hashes[f] == run.hashes[f];
+                }
+                double[] goldDivergence = gold.divergence;
+
+                String result;
+                if (exact) {
+                    result = "exact";
+                } else if (gold.stride > 1) {
+                    result = "unjudged"; // The samples can't show the worst cell
+                    failed = true;
+                } else if (worst <= tolerance && divergence[0] <= DIVERGENCE_TOLERANCE * Math.max(goldDivergence[0], 1e-12)) {
+                    result = "within";
+                } else {
+                    result = "FAIL";
+                    failed = true;
+                }
+
+                // One row per field, the run's speed, divergence and verdict go on the first one
+                for (int f = 0; f < FIELD_NAMES.length; f++) {
+                    if (f == 0) {
+                        System.out.printf("%-11s %-8s %9.2f %6.2fx  %-5s %10.3g %10.3g %10.3g %10.3g %10.3g %10.3g  %s%n",
+                                name, shape, run.stepsPerSecond, run.stepsPerSecond / gold.stepsPerSecond, FIELD_NAMES[f],
+                                errors[f][0], errors[f][1], errors[f][2], divergence[0], divergence[1], goldDivergence[0], result);
+                    } else {
+                        System.out.printf("%-11s %-8s %9s %7s  %-5s %10.3g %10.3g %10.3g%n",
+                                "", "", "", "", FIELD_NAMES[f], errors[f][0], errors[f][1], errors[f][2]);
+                    }
+                }
+            }
+        }
+
+        if (!record) {
+            System.out.println();
+            System.out.printf("%-11s %-8s %9s  %-8s %10s %10s  %s%n", "tracers", "shape", "steps/s", "mode", "particles", "max |d|", "result");
+            for (String name : scenes) {
+                failed |= !checkTracers(Scene.load(name), compact, steps);
+            }
+        }
+
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    // Tracer mode, d has to stay untouched and the particles have to make sense, returns false if not
+    static boolean checkTracers(Scene scene, boolean compact, int steps) {
+        if (scene.emitters.isEmpty()) {
+            return true; // Nothing to emit from
+        }
+        Liquid l = new Liquid(scene, compact, 0, 1);
+        Snapshot run = run(l, steps);
+
+        float maxD = 0.0f;
+        for (float value : run.fields[3]) {
+            maxD = Math.max(maxD, Math.abs(value));
+        }
+
+        Tracers t = l.tracers;
+        int emitted = steps * t.emitX.length * t.EMIT_PER_CELL;
+        boolean sane = t.count > 0 && t.count <= Math.min(emitted, t.MAX_PARTICLES);
+        float maxX = l.xCells * l.cellWidth;
+        float maxY = l.yCells * l.cellHeight;
+        for (int i = 0; i < t.count && sane; i++) {
+            sane = t.px[i] >= 0 && t.px[i] < maxX && t.py[i] >= 0 && t.py[i] < maxY && t.age[i] >= 0 && t.age[i] <= t.MAX_AGE;
+        }
+
+        boolean ok = maxD == 0.0f && sane;
+        System.out.printf("%-11s %-8s %9.2f  %-8s %10d %10.3g  %s%n", scene.name, Scene.CONTAINER_NAMES[scene.container],
+                run.stepsPerSecond, compact ? "compact" : "float", t.count, maxD, ok ? "ok" : "FAIL");
+        return ok;
+    }
+
+    // Runs the steps and takes a copy of the fields
+    static Snapshot run(Liquid l, int steps) {
+        long start = System.nanoTime();
+        for (int i = 0; i < steps; i++) {
+            l.updateLiquid(DT);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Snapshot snapshot = new Snapshot();
+        snapshot.steps = steps;
+        snapshot.xCells = l.xCells;
+        snapshot.yCells = l.yCells;
+        snapshot.stepsPerSecond = steps / seconds;
+        Field[] fields = {l.u, l.v, l.p, l.d};
+        for (int f = 0; f < fields.length; f++) {
+            float[] values = new float[l.xCells * l.yCells];
+            for (int y = 0; y < l.yCells; y++) {
+                for (int x = 0; x < l.xCells; x++) {
+                    values[y * l.xCells + x] = fields[f].get(y, x);
+                }
+            }
+            snapshot.fields[f] = values;
+            snapshot.hashes[f] = hash(values);
+        }
+        snapshot.divergence = divergence(l, snapshot);
+        return snapshot;
+    }
+
+    // 64 bit FNV-1a over the raw float bits
+    static long hash(float[] values) {
+        long h = 0xcbf29ce484222325L;
+        for (float value : values) {
+            h = (h ^ Float.floatToRawIntBits(value)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // Every stride-th cell in row order, walls included (the mask picks them out again)
+    static Snapshot sample(Liquid l, Snapshot full, int stride) {
+        if (stride == 1) {
+            return full;
+        }
+        Snapshot sampled = new Snapshot();
+        sampled.steps = full.steps;
+        sampled.xCells = full.xCells;
+        sampled.yCells = full.yCells;
+        sampled.stride = stride;
+        sampled.stepsPerSecond = full.stepsPerSecond;
+        sampled.hashes = full.hashes;
+        sampled.divergence = full.divergence;
+        for (int f = 0; f < FIELD_NAMES.length; f++) {
+            float[] values = new float[samples(full.xCells, full.yCells, stride)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = full.fields[f][i * stride];
+            }
+            sampled.fields[f] = values;
+        }
+        return sampled;
+    }
+
+    static int samples(int xCells, int yCells, int stride) {
+        return (xCells * yCells + stride - 1) / stride;
+    }
+
+    // Which of the samples are fluid cells
+    static boolean[] fluidSamples(Liquid l, int stride) {
+        boolean[] fluid = new boolean[samples(l.xCells, l.yCells, stride)];
+        for (int i = 0; i < fluid.length; i++) {
+            int cell = i * stride;
+            fluid[i] = l.s[cell / l.xCells][cell % l.xCells] != 0;
+        }
+        return fluid;
+    }
+
+    // L2, Linf and Linf relative to the largest expected value, over the fluid cells (or samples)
+    static double[] compare(boolean[] fluid, float[] expected, float[] actual) {
+        double sum = 0.0;
+        double max = 0.0;
+        double scale = 0.0;
+        int count = 0;
+        for (int i = 0; i < expected.length; i++) {
+            if (!fluid[i]) continue;
+            double diff = Math.abs((double) actual[i] - expected[i]);
+            sum += diff * diff;
+            max = Math.max(max, diff);
+            scale = Math.max(scale, Math.abs(expected[i]));
+            count++;
+        }
+        double l2 = count > 0 ? Math.sqrt(sum / count) : 0.0;
+        double rel = scale > 0 ? max / scale : max;
+        return new double[] {l2, max, rel};
+    }
+
+    // L2 and Linf of the divergence in the interior fluid cells, same stencil as solveCompression
+    static double[] divergence(Liquid l, Snapshot snapshot) {
+        float[] u = snapshot.fields[0];
+        float[] v = snapshot.fields[1];
+        int w = l.xCells;
+        double sum = 0.0;
+        double max = 0.0;
+        int count = 0;
+        for (int y = 1; y < l.yCells - 1; y++) {
+            for (int x = 1; x < l.xCells - 1; x++) {
+                if (l.s[y][x] == 0) continue;
+                double div = u[y * w + x + 1] - u[y * w + x] + v[(y + 1) * w + x] - v[y * w + x];
+                sum += div * div;
+                max = Math.max(max, Math.abs(div));
+                count++;
+            }
+        }
+        return new double[] {count > 0 ? Math.sqrt(sum / count) : 0.0, max};
+    }
+
+    static Path goldenFile(String scene, int container, boolean local) {
+        Path dir = Scene.find(scene).toAbsolutePath().getParent().resolveSibling(GOLDEN_DIR);
+        if (local) {
+            dir = dir.resolve(LOCAL_DIR);
+        }
+        return dir.resolve(scene + "_" + Scene.CONTAINER_NAMES[container] + ".golden");
+    }
+
+    static void write(Path file, Snapshot snapshot) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), "golden", ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(snapshot.steps);
+            out.writeInt(snapshot.xCells);
+            out.writeInt(snapshot.yCells);
+            out.writeInt(snapshot.stride);
+            out.writeDouble(snapshot.stepsPerSecond);
+            for (long hash : snapshot.hashes) {
+                out.writeLong(hash);
+            }
+            out.writeDouble(snapshot.divergence[0]);
+            out.writeDouble(snapshot.divergence[1]);
+            for (float[] values : snapshot.fields) {
+                for (float value : values) {
+                    out.writeFloat(value);
+                }
+            }
+        }
+        // Move it into place in one go so a check never reads half a file
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // null if there is no golden (or it isn't one)
+    static Snapshot read(Path file) throws IOException {
+        if (!Files.isReadable(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            Snapshot snapshot = new Snapshot();
+            snapshot.steps = in.readInt();
+            snapshot.xCells = in.readInt();
+            snapshot.yCells = in.readInt();
+            snapshot.stride = in.readInt();
+            snapshot.stepsPerSecond = in.readDouble();
+            for (int f = 0; f < FIELD_NAMES.length; f++) {
+                snapshot.hashes[f] = in.readLong();
+            }
+            snapshot.divergence = new double[] {in.readDouble(), in.readDouble()};
+            for (int f = 0; f < FIELD_NAMES.length; f++) {
+                float[] values = new float[samples(snapshot.xCells, snapshot.yCells, snapshot.stride)];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = in.readFloat();
+                }
+                snapshot.fields[f] = values;
+            }
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+import java.awt.*;
+import java.awt.event.HierarchyBoundsAdapter;
+import java.awt.event.HierarchyEvent;
+import java.awt.image.BufferStrategy;
+import java.awt.image.VolatileImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Active Rendering
+ *
+ *      - Draws straight into a BufferStrategy from its own loop, instead of asking Swing to repaint
+ *      - Frames are paced to the refresh rate of the screen the window is on (not a fixed FPS),
+ *        looked up again only when the window moves to another screen (getDisplayMode isn't cheap)
+ *      - The simulation image is kept in a VolatileImage (video memory when possible), only dirty tiles get uploaded
+ *      - Present latency (sim step finished --> frame shown) is measured and shown in the title
+ *
+ *      Java2D can't promise real vsync in a window, so each frame is shown, Toolkit.sync()'d and then
+ *      the loop sleeps until the next refresh.
+ */
+
+public class RenderCanvas extends Canvas implements Runnable {
+
+    /*
+     * Alterable Values!
+     */
+    final int FALLBACK_REFRESH_RATE = 60;   // When the screen doesn't say what its refresh rate is
+    final int BUFFERS = 2;
+    final boolean SHOW_STATS = true;
+
+    // DO NOT TOUCH!
+    static int gameWidth = GameWindow.gameWidth;
+    static int gameHeight = GameWindow.gameHeight;
+
+    Liquid l = GameWindow.l;
+
+    Thread renderThread;
+    volatile boolean running = false;
+    final ViewControls controls = new ViewControls(); // Number keys, title
+    volatile int refresh = FALLBACK_REFRESH_RATE;
+    GraphicsConfiguration refreshConfig; // Screen the refresh rate was read from
+
+    BufferStrategy strategy;
+    VolatileImage cache; // Copy of the simulation image, kept in video memory when possible
+    final List<Rectangle> dirtyRects = new ArrayList<>();
+
+    // Stats, reset every second
+    double latencySum = 0;
+    double latencyMax = 0;
+    int statFrames = 0;
+    int missedFrames = 0;
+    long lastStatsTime = System.nanoTime();
+
+    public RenderCanvas() {
+        this.setPreferredSize(new Dimension(gameWidth, gameHeight));
+        this.setBackground(Color.black);
+        this.setIgnoreRepaint(true); // We draw it ourselves
+        this.setFocusable(true);
+        this.addKeyListener(controls);
+
+        // Moved to another screen, pace to that one instead
+        this.addHierarchyBoundsListener(new HierarchyBoundsAdapter() {
+            @Override
+            public void ancestorMoved(HierarchyEvent e) {
+                checkScreen();
+            }
+        });
+    }
+
+    // Has to be called once the window is visible
+    public void start() {
+        checkScreen();
+        createBufferStrategy(BUFFERS);
+        strategy = getBufferStrategy();
+        running = true;
+        renderThread = new Thread(this, "Render Loop");
+        renderThread.start();
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    // Only reads the display mode when the canvas is on a different screen than last time
+    void checkScreen() {
+        GraphicsConfiguration config = getGraphicsConfiguration();
+        if (config != refreshConfig) {
+            refreshConfig = config;
+            refresh = refreshRate();
+        }
+    }
+
+    // Refresh rate of the screen the canvas is on
+    int refreshRate() {
+        GraphicsConfiguration config = getGraphicsConfiguration();
+        if (config != null) {
+            int rate = config.getDevice().getDisplayMode().getRefreshRate();
+            if (rate != DisplayMode.REFRESH_RATE_UNKNOWN && rate > 0) {
+                return rate;
+            }
+        }
+        return FALLBACK_REFRESH_RATE;
+    }
+
+    @Override
+    public void run() {
+        int refresh = this.refresh;
+        long frameNanos = 1000000000L / refresh;
+        long nextFrame = System.nanoTime() + frameNanos;
+        int frames = 1;
+
+        while (running) {
+
+            controls.apply(l);
+
+            // Step by however many refreshes went by, same as the passive loop's delta / FPS
+            l.updateLiquid((double) frames / refresh);
+            long ready = System.nanoTime();
+
+            render();
+            long shown = System.nanoTime();
+            recordFrame((shown - ready) / 1e6, refresh);
+
+            // Sleep until the next refresh, if we are late skip the refreshes we missed
+            long now = System.nanoTime();
+            frames = 1;
+            if (now > nextFrame) {
+                long behind = (now - nextFrame) / frameNanos + 1;
+                frames += (int) behind;
+                missedFrames += (int) behind;
+                nextFrame += behind * frameNanos;
+            }
+            sleepUntil(nextFrame);
+            nextFrame += frameNanos;
+
+            // Moved to another screen (see checkScreen), pace to that one instead
+            int rate = this.refresh;
+            if (rate != refresh) {
+                refresh = rate;
+                frameNanos = 1000000000L / refresh;
+            }
+        }
+    }
+
+    void sleepUntil(long time) {
+        long remaining = time - System.nanoTime();
+        if (remaining > 2000000L) { // Sleep most of it, spin the last bit since sleep is coarse
+            try {
+                Thread.sleep((remaining - 1000000L) / 1000000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+                return;
+            }
+        }
+        while (System.nanoTime() < time) {
+            Thread.onSpinWait();
+        }
+    }
+
+    void render() {
+        // Contents can be lost at any point (screen locked, resolution change), so keep redrawing until they stick
+        do {
+            do {
+                uploadImage();
+                Graphics2D graphics = (Graphics2D) strategy.getDrawGraphics();
+                try {
+                    graphics.setColor(Color.black);
+                    graphics.fillRect(0, 0, getWidth(), getHeight());
+
+                    //Sets 0,0  to the bottom left
+                    graphics.scale(1, -1);
+                    graphics.translate(0, -getHeight());
+
+                    if (cache != null) {
+                        graphics.drawImage(cache, 0, 0, gameWidth, gameHeight, null);
+                    } else {
+                        graphics.drawImage(l.image, 0, 0, gameWidth, gameHeight, null);
+                    }
+                    if (l.SHOW_STREAMLINES) {
+                        l.drawStreamlines(graphics);
+                    }
+                } finally {
+                    graphics.dispose();
+                }
+            } while (strategy.contentsRestored());
+            strategy.show();
+        } while (strategy.contentsLost());
+
+        Toolkit.getDefaultToolkit().sync();
+    }
+
+    // Copies the changed parts of the simulation image into the video memory copy
+    void uploadImage() {
+        dirtyRects.clear();
+        l.dirty.collect(dirtyRects);
+
+        GraphicsConfiguration config = getGraphicsConfiguration();
+        if (config == null) {
+            cache = null;
+            return;
+        }
+
+        boolean full = false;
+        int status = cache == null ? VolatileImage.IMAGE_INCOMPATIBLE : cache.validate(config);
+        if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+            cache = config.createCompatibleVolatileImage(l.xCells, l.yCells);
+            full = true;
+        } else if (status == VolatileImage.IMAGE_RESTORED) {
+            full = true; // Video memory was wiped, upload everything again
+        }
+
+        Graphics2D graphics = cache.createGraphics();
+        try {
+            if (full) {
+                graphics.drawImage(l.image, 0, 0, null);
+            } else {
+                for (Rectangle r : dirtyRects) {
+                    graphics.drawImage(l.image, r.x, r.y, r.x + r.width, r.y + r.height, r.x, r.y, r.x + r.width, r.y + r.height, null);
+                }
+            }
+        } finally {
+            graphics.dispose();
+        }
+    }
+
+    void recordFrame(double latencyMs, int refresh) {
+        latencySum += latencyMs;
+        latencyMax = Math.max(latencyMax, latencyMs);
+        statFrames++;
+
+        long now = System.nanoTime();
+        if (SHOW_STATS && now - lastStatsTime >= 1000000000L) {
+            ViewControls.setTitle(this, l, String.format("Fluid Simulation - %d Hz, %d fps, present %.1f ms avg / %.1f ms max, %d missed",
+                    refresh, statFrames, latencySum / statFrames, latencyMax, missedFrames));
+            latencySum = 0;
+            latencyMax = 0;
+            statFrames = 0;
+            missedFrames = 0;
+            lastStatsTime = now;
+        }
+    }
+}
@@ -0,0 +1,321 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/*
+ * Scene Description
+ *
+ *      Everything that makes one setup different from another (walls, inflow, forces, dye), read from a .properties file in scenes/
+ *
+ *      - Every piece is turned into the list of cells it touches, so a step only visits those cells instead of sweeping the whole grid
+ *      - Pick a scene with -Dfluid.scene=<name or file>, otherwise Liquid.SCENE is used
+ *      - Files are looked for as given, then in scenes/ next to where the program runs or next to the classes
+ *
+ *      Keys (see scenes/*.properties)
+ *      - grid            --> columns rows
+ *      - container       --> none / sphere / airfoil / pegs / cube (or 0-4), number keys still swap it while running
+ *      - walls           --> any of top bottom left right
+ *      - gravity         --> added to v on every fluid face each step (0 --> off)
+ *      - inflow.speed    --> wind coming in on the left (0 --> no inflow, the left side just copies the interior)
+ *      - inflow.wave.amplitude, inflow.wave.period --> makes the inflow a wave, speed * (1 + amplitude * sin(2 pi t / period))
+ *      - initial.u       --> starting u along column 1
+ *      - jet.N           --> x0 y0 x1 y1 u [v], velocity held at a box of cells every step
+ *      - emitter.N       --> x0 y0 x1 y1 amount [add | set] [forces | after-advection], dye put into a box of cells
+ *
+ *      Cells can be written as n, center+n / center-n, or end-n (end is the last column / row), boxes include both corners.
+ *      Row 0 is the bottom of the window.
+ */
+
+public class Scene {
+
+    static final String SCENE_DIR = "scenes";
+    static final String[] CONTAINER_NAMES = {"none", "sphere", "airfoil", "pegs", "cube"};
+
+    // A list of cells, y and x side by side
+    static class Cells {
+        final int[] y;
+        final int[] x;
+        final int size;
+
+        Cells(int[] y, int[] x, int size) {
+            this.y = y;
+            this.x = x;
+            this.size = size;
+        }
+
+        // Every cell of the box, clipped to the grid
+        static Cells box(int x0, int y0, int x1, int y1, int xCells, int yCells) {
+            x0 = Math.max(0, Math.min(x0, xCells - 1));
+            x1 = Math.max(0, Math.min(x1, xCells - 1));
+            y0 = Math.max(0, Math.min(y0, yCells - 1));
+            y1 = Math.max(0, Math.min(y1, yCells - 1));
+            int w = Math.abs(x1 - x0) + 1;
+            int h = Math.abs(y1 - y0) + 1;
+
+            int[] ys = new int[w * h];
+            int[] xs = new int[w * h];
+            int n = 0;
+            for (int y = Math.min(y0, y1); y <= Math.max(y0, y1); y++) {
+                for (int x = Math.min(x0, x1); x <= Math.max(x0, x1); x++) {
+                    ys[n] = y;
+                    xs[n] = x;
+                    n++;
+                }
+            }
+            return new Cells(ys, xs, n);
+        }
+    }
+
+    // Velocity held at a set of cells
+    static class Jet {
+        final Cells cells;
+        final float u;
+        final float v;
+        final boolean setV; // Without a v only u is held
+
+        Jet(Cells cells, float u, float v, boolean setV) {
+            this.cells = cells;
+            this.u = u;
+            this.v = v;
+            this.setV = setV;
+        }
+    }
+
+    // Dye put into a set of cells
+    static class Emitter {
+        final Cells cells;
+        final float amount;
+        final boolean set;            // true --> dye = amount, false --> dye += amount
+        final boolean afterAdvection; // true --> after the dye has moved, false --> with the forces
+
+        Emitter(Cells cells, float amount, boolean set, boolean afterAdvection) {
+            this.cells = cells;
+            this.amount = amount;
+            this.set = set;
+            this.afterAdvection = afterAdvection;
+        }
+    }
+
+    final String name;
+
+    int xCells = 500;
+    int yCells = 500;
+    int container = Obstacles.NONE;
+
+    boolean wallBottom = false;
+    boolean wallTop = false;
+    boolean wallLeft = false;
+    boolean wallRight = false;
+
+    float gravity = 0.0f;
+    float initialU = 0.0f;
+
+    float inflowSpeed = 0.0f;
+    float waveAmplitude = 0.0f;
+    float wavePeriod = 1.0f;
+
+    final List<Jet> jets = new ArrayList<>();
+    final List<Emitter> emitters = new ArrayList<>();
+
+    Scene(String name) {
+        this.name = name;
+    }
+
+    public static Scene load(String scene) {
+        Path file = find(scene);
+        Properties props = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            props.load(reader);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read scene " + file, e);
+        }
+        String name = file.getFileName().toString().replace(".properties", "");
+        return parse(name, props);
+    }
+
+    static Path find(String scene) {
+        String fileName = scene.endsWith(".properties") ? scene : scene + ".properties";
+
+        List<Path> tries = new ArrayList<>();
+        tries.add(Paths.get(scene));
+        tries.add(Paths.get(SCENE_DIR, fileName));
+        tries.add(Paths.get("Fluid Simulation", SCENE_DIR, fileName));
+        try {
+            // Next to the bin / src folder the classes were loaded from
+            Path classes = Paths.get(Scene.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            if (classes.getParent() != null) {
+                tries.add(classes.getParent().resolve(SCENE_DIR).resolve(fileName));
+            }
+        } catch (URISyntaxException | SecurityException | NullPointerException e) {
+            // Only a guess anyway
+        }
+
+        for (Path path : tries) {
+            if (Files.isRegularFile(path)) {
+                return path;
+            }
+        }
+        throw new IllegalArgumentException("No scene file found for \"" + scene + "\", tried " + tries);
+    }
+
+    static Scene parse(String name, Properties props) {
+        Scene scene = new Scene(name);
+
+        String grid = props.getProperty("grid");
+        if (grid != null) {
+            String[] parts = words(grid);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException(name + ": grid needs columns and rows, got \"" + grid + "\"");
+            }
+            scene.xCells = Integer.parseInt(parts[0]);
+            scene.yCells = Integer.parseInt(parts[1]);
+        }
+
+        scene.container = containerFor(name, props.getProperty("container", "none"));
+
+        for (String wall : words(props.getProperty("walls", ""))) {
+            switch (wall) {
+                case "bottom": scene.wallBottom = true; break;
+                case "top": scene.wallTop = true; break;
+                case "left": scene.wallLeft = true; break;
+                case "right": scene.wallRight = true; break;
+                default: throw new IllegalArgumentException(name + ": unknown wall \"" + wall + "\"");
+            }
+        }
+
+        scene.gravity = number(name, props, "gravity", 0.0f);
+        scene.initialU = number(name, props, "initial.u", 0.0f);
+        scene.inflowSpeed = number(name, props, "inflow.speed", 0.0f);
+        scene.waveAmplitude = number(name, props, "inflow.wave.amplitude", 0.0f);
+        scene.wavePeriod = number(name, props, "inflow.wave.period", 1.0f);
+
+        for (String key : indexedKeys(props, "jet.")) {
+            String[] parts = words(props.getProperty(key));
+            if (parts.length < 5) {
+                throw new IllegalArgumentException(name + ": " + key + " needs x0 y0 x1 y1 u [v]");
+            }
+            Cells cells = scene.box(parts);
+            boolean setV = parts.length > 5;
+            scene.jets.add(new Jet(cells, Float.parseFloat(parts[4]), setV ? Float.parseFloat(parts[5]) : 0.0f, setV));
+        }
+
+        for (String key : indexedKeys(props, "emitter.")) {
+            String[] parts = words(props.getProperty(key));
+            if (parts.length < 5) {
+                throw new IllegalArgumentException(name + ": " + key + " needs x0 y0 x1 y1 amount [add | set] [forces | after-advection]");
+            }
+            Cells cells = scene.box(parts);
+            boolean set = false;
+            boolean afterAdvection = false;
+            for (int i = 5; i < parts.length; i++) {
+                switch (parts[i]) {
+                    case "add": set = false; break;
+                    case "set": set = true; break;
+                    case "forces": afterAdvection = false; break;
+                    case "after-advection": afterAdvection = true; break;
+                    default: throw new IllegalArgumentException(name + ": " + key + " has an unknown option \"" + parts[i] + "\"");
+                }
+            }
+            scene.emitters.add(new Emitter(cells, Float.parseFloat(parts[4]), set, afterAdvection));
+        }
+
+        return scene;
+    }
+
+    // Inflow speed at the given time, the wave is left out entirely when there isn't one
+    public float inflowSpeed(float time) {
+        if (waveAmplitude == 0.0f) {
+            return inflowSpeed;
+        }
+        return inflowSpeed * (1.0f + waveAmplitude * (float) Math.sin(2.0 * Math.PI * time / wavePeriod));
+    }
+
+    // Fluid faces gravity pulls on, depends on the walls so it is rebuilt with the container
+    public Cells gravityCells(byte[][] s) {
+        if (gravity == 0.0f) {
+            return new Cells(new int[0], new int[0], 0);
+        }
+        int n = 0;
+        int[] ys = new int[xCells * yCells];
+        int[] xs = new int[xCells * yCells];
+        for (int y = 1; y < yCells; y++) {
+            for (int x = 0; x < xCells; x++) {
+                if (s[y][x] == 1 && s[y - 1][x] != 0) {
+                    ys[n] = y;
+                    xs[n] = x;
+                    n++;
+                }
+            }
+        }
+        // Sized for the whole grid while counting, trimmed so it doesn't keep 8 bytes per cell around
+        return new Cells(Arrays.copyOf(ys, n), Arrays.copyOf(xs, n), n);
+    }
+
+    Cells box(String[] parts) {
+        return Cells.box(cell(parts[0], xCells), cell(parts[1], yCells), cell(parts[2], xCells), cell(parts[3], yCells), xCells, yCells);
+    }
+
+    // n, center+n, center-n, end-n
+    static int cell(String text, int size) {
+        int base = 0;
+        String rest = text;
+        if (text.startsWith("center")) {
+            base = size / 2;
+            rest = text.substring("center".length());
+        } else if (text.startsWith("end")) {
+            base = size - 1;
+            rest = text.substring("end".length());
+        }
+        if (rest.isEmpty()) {
+            return base;
+        }
+        if (rest.startsWith("+")) {
+            rest = rest.substring(1);
+        }
+        return base + Integer.parseInt(rest);
+    }
+
+    static int containerFor(String name, String container) {
+        for (int i = 0; i < CONTAINER_NAMES.length; i++) {
+            if (CONTAINER_NAMES[i].equals(container) || Integer.toString(i).equals(container)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(name + ": unknown container \"" + container + "\"");
+    }
+
+    static float number(String name, Properties props, String key, float fallback) {
+        String value = props.getProperty(key);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Float.parseFloat(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + ": " + key + " is not a number (\"" + value + "\")");
+        }
+    }
+
+    // prefix1, prefix2 ... in number order
+    static List<String> indexedKeys(Properties props, String prefix) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 1; props.getProperty(prefix + i) != null; i++) {
+            keys.add(prefix + i);
+        }
+        return keys;
+    }
+
+    static String[] words(String text) {
+        text = text.trim();
+        return text.isEmpty() ? new String[0] : text.split("\\s+");
+    }
+}
@@ -0,0 +1,227 @@
+import java.awt.*;
+
+/*
+ * Streamline Tracing
+ *
+ *      - Seeds are laid out on a regular grid every SEED_SPACING cells
+ *      - Each seed is integrated through the velocity field with RK2 (or RK4) instead of forward Euler
+ *      - Seeds are traced in parallel on the shared worker pool, off the Swing thread
+ *      - Points go into preallocated int buffers so drawing is just drawPolyline, no GeneralPath per frame
+ *
+ *      Refreshing
+ *      - The lines are only retraced when the velocity at the seeds has changed by more than CHANGE_THRESHOLD
+ *      - Or when they are MAX_STALE_STEPS steps old, whichever comes first
+ *      - Tracing writes into a back buffer which is then swapped in, so the painter never sees half a trace
+ *      - After a retrace only the tiles under the old and new lines are redrawn (markTraced), not the whole image
+ */
+
+public class Streamlines {
+
+    /*
+     * CHANGEABLE PARAMETERS
+     */
+
+    final int SEED_SPACING = 10;          // Cells between seeds
+    final int NUM_SEGS = 100;             // Max segments per streamline
+    final float STEP = 0.1f;              // Integration step (same as the old Euler step)
+    final int ORDER = 2;                  // 2 --> RK2 (midpoint), 4 --> RK4
+
+    final int MAX_STALE_STEPS = 10;       // Retrace at least this often
+    final float CHANGE_THRESHOLD = 0.05f; // Relative change in seed velocities that forces a retrace
+
+    //DO NOT TOUCH!
+
+    final Liquid l;
+
+    final int seedCols;
+    final int seedRows;
+    final int seedCount;
+
+    final float[] seedX;
+    final float[] seedY;
+
+    // Velocities at the seeds when they were last traced, used to tell if the field has changed
+    final float[] tracedU;
+    final float[] tracedV;
+
+    // Two sets of buffers, one being drawn and one being traced into
+    int[][] frontX, frontY, backX, backY;
+    int[] frontCount, backCount;
+    final Object swapLock = new Object();
+
+    int stepsSinceTrace = Integer.MAX_VALUE;
+    boolean traced = false;
+
+    public Streamlines(Liquid l) {
+        this.l = l;
+
+        seedCols = Math.max(0, (l.xCells - 2 + SEED_SPACING - 1) / SEED_SPACING);
+        seedRows = Math.max(0, (l.yCells - 2 + SEED_SPACING - 1) / SEED_SPACING);
+        seedCount = seedCols * seedRows;
+
+        seedX = new float[seedCount];
+        seedY = new float[seedCount];
+        tracedU = new float[seedCount];
+        tracedV = new float[seedCount];
+
+        for (int r = 0; r < seedRows; r++) {
+            for (int c = 0; c < seedCols; c++) {
+                int k = r * seedCols + c;
+                seedX[k] = (1 + c * SEED_SPACING + 0.5f) * l.cellWidth;
+                seedY[k] = (1 + r * SEED_SPACING + 0.5f) * l.cellHeight;
+            }
+        }
+
+        frontX = new int[seedCount][NUM_SEGS + 1];
+        frontY = new int[seedCount][NUM_SEGS + 1];
+        backX = new int[seedCount][NUM_SEGS + 1];
+        backY = new int[seedCount][NUM_SEGS + 1];
+        frontCount = new int[seedCount];
+        backCount = new int[seedCount];
+    }
+
+    // Called once per simulation step, after the fields are settled. Returns true when the lines were retraced
+    public boolean update() {
+        stepsSinceTrace++;
+        if (traced && stepsSinceTrace < MAX_STALE_STEPS && fieldChange() < CHANGE_THRESHOLD) {
+            return false;
+        }
+        trace();
+        stepsSinceTrace = 0;
+        traced = true;
+        return true;
+    }
+
+    // Relative change of the velocity at the seeds since the last trace
+    float fieldChange() {
+        double diff = 0.0;
+        double norm = 0.0;
+        for (int k = 0; k < seedCount; k++) {
+            float uVel = l.sampleField(seedX[k], seedY[k], Liquid.U_FIELD);
+            float vVel = l.sampleField(seedX[k], seedY[k], Liquid.V_FIELD);
+            float du = uVel - tracedU[k];
+            float dv = vVel - tracedV[k];
+            diff += du * du + dv * dv;
+            norm += tracedU[k] * tracedU[k] + tracedV[k] * tracedV[k];
+        }
+        if (norm < 1e-12) {
+            return diff < 1e-12 ? 0.0f : Float.MAX_VALUE;
+        }
+        return (float) Math.sqrt(diff / norm);
+    }
+
+    void trace() {
+        final int[][] outX = backX;
+        final int[][] outY = backY;
+        final int[] outCount = backCount;
+
+        Workers.forBands(0, seedCount, Workers.grainFor(seedCount), (from, to) -> {
+            float[] vel = new float[2];
+            for (int k = from; k < to; k++) {
+                traceSeed(k, outX[k], outY[k], outCount, vel);
+            }
+        });
+
+        synchronized (swapLock) {
+            int[][] tx = frontX; frontX = backX; backX = tx;
+            int[][] ty = frontY; frontY = backY; backY = ty;
+            int[] tc = frontCount; frontCount = backCount; backCount = tc;
+        }
+    }
+
+    void traceSeed(int k, int[] xs, int[] ys, int[] counts, float[] vel) {
+        float x = seedX[k];
+        float y = seedY[k];
+        float maxX = l.xCells * l.cellWidth;
+        float maxY = l.yCells * l.cellHeight;
+        float h = STEP;
+
+        velocity(x, y, vel);
+        tracedU[k] = vel[0];
+        tracedV[k] = vel[1];
+
+        int n = 0;
+        xs[n] = Math.round(x);
+        ys[n] = Math.round(y);
+        n++;
+
+        for (int seg = 0; seg < NUM_SEGS; seg++) {
+            float k1u = vel[0], k1v = vel[1];
+            float dx, dy;
+
+            if (ORDER == 4) {
+                velocity(x + 0.5f * h * k1u, y + 0.5f * h * k1v, vel);
+                float k2u = vel[0], k2v = vel[1];
+                velocity(x + 0.5f * h * k2u, y + 0.5f * h * k2v, vel);
+                float k3u = vel[0], k3v = vel[1];
+                velocity(x + h * k3u, y + h * k3v, vel);
+                dx = h * (k1u + 2 * k2u + 2 * k3u + vel[0]) / 6.0f;
+                dy = h * (k1v + 2 * k2v + 2 * k3v + vel[1]) / 6.0f;
+            } else {
+                velocity(x + 0.5f * h * k1u, y + 0.5f * h * k1v, vel);
+                dx = h * vel[0];
+                dy = h * vel[1];
+            }
+
+            x += dx;
+            y += dy;
+
+            // Stop when leaving the domain or running into a wall
+            if (x < 0 || y < 0 || x >= maxX || y >= maxY) {
+                break;
+            }
+            if (l.s[(int) (y / l.cellHeight)][(int) (x / l.cellWidth)] == 0) {
+                break;
+            }
+
+            xs[n] = Math.round(x);
+            ys[n] = Math.round(y);
+            n++;
+
+            velocity(x, y, vel);
+        }
+        counts[k] = n;
+    }
+
+    // Marks the tiles under the bounding box of every line, old (back) and new (front), call right after update() returned true
+    public void markTraced(DirtyTiles dirty) {
+        for (int k = 0; k < seedCount; k++) {
+            markLine(dirty, frontX[k], frontY[k], frontCount[k]);
+            markLine(dirty, backX[k], backY[k], backCount[k]);
+        }
+    }
+
+    void markLine(DirtyTiles dirty, int[] xs, int[] ys, int n) {
+        if (n < 2) {
+            return; // Nothing was drawn
+        }
+        int minX = xs[0], maxX = xs[0];
+        int minY = ys[0], maxY = ys[0];
+        for (int i = 1; i < n; i++) {
+            minX = Math.min(minX, xs[i]);
+            maxX = Math.max(maxX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        // Pixels to cells, one cell extra on each side for the rounding and the width of the line
+        dirty.markBox((int) (minX / l.cellWidth) - 1, (int) (minY / l.cellHeight) - 1,
+                (int) (maxX / l.cellWidth) + 1, (int) (maxY / l.cellHeight) + 1);
+    }
+
+    void velocity(float x, float y, float[] out) {
+        out[0] = l.sampleField(x, y, Liquid.U_FIELD);
+        out[1] = l.sampleField(x, y, Liquid.V_FIELD);
+    }
+
+    // Draws the last finished trace, safe to call from the Swing thread
+    public void draw(Graphics2D g) {
+        g.setColor(Color.WHITE);
+        synchronized (swapLock) {
+            for (int k = 0; k < seedCount; k++) {
+                if (frontCount[k] > 1) {
+                    g.drawPolyline(frontX[k], frontY[k], frontCount[k]);
+                }
+            }
+        }
+    }
+}
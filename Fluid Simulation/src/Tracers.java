@@ -0,0 +1,156 @@
+/*
+ * Tracer Particles
+ *
+ *      Instead of moving dye around the whole grid every step, drop particles in at the injectors
+ *      and let them ride the velocity field. Much cheaper on big grids, only the particles cost anything.
+ *
+ *      - Particles are kept as plain arrays (x, y, age), allocated once and recycled, nothing is made per step
+ *      - Moved with RK2 through the velocity field, in parallel on the shared worker pool
+ *      - Dead particles (too old, left the tunnel, hit a wall) are packed out so the live ones stay at the front
+ *      - Emitters are the same cells the scene's dye emitters cover (the two lines at column 3 for the wind tunnel)
+ *      - Drawn by adding light to the image, so thick streams come out brighter
+ */
+
+public class Tracers {
+
+    /*
+     * CHANGEABLE PARAMETERS
+     */
+
+    final int MAX_PARTICLES = 300000;
+    final int EMIT_PER_CELL = 2;     // New particles per emitter cell per step
+    final float MAX_AGE = 8.0f;      // Seconds a particle lives
+    final int SPLAT = 70;            // Brightness a particle adds to its cell (0-255)
+
+    //DO NOT TOUCH!
+
+    final Liquid l;
+
+    // Particle pool, the first count entries are alive
+    final float[] px;
+    final float[] py;
+    final float[] age;
+    int count = 0;
+
+    // Emitter cells, each one is an (x, y) cell where new particles start
+    int[] emitX = new int[0];
+    int[] emitY = new int[0];
+
+    int seed = 0x2545F491; // Jitter inside the emitter cells, xorshift so nothing gets allocated
+
+    float stepDt;
+    final Workers.Band advectBand = this::advect; // Made once, not per step
+
+    public Tracers(Liquid l) {
+        this.l = l;
+        px = new float[MAX_PARTICLES];
+        py = new float[MAX_PARTICLES];
+        age = new float[MAX_PARTICLES];
+        setupEmitters();
+    }
+
+    // Same cells the scene's dye emitters put dye in
+    void setupEmitters() {
+        int n = 0;
+        for (Scene.Emitter emitter : l.scene.emitters) {
+            n += emitter.cells.size;
+        }
+        emitX = new int[n];
+        emitY = new int[n];
+
+        n = 0;
+        for (Scene.Emitter emitter : l.scene.emitters) {
+            Scene.Cells c = emitter.cells;
+            for (int i = 0; i < c.size; i++) {
+                emitX[n] = c.x[i];
+                emitY[n] = c.y[i];
+                n++;
+            }
+        }
+    }
+
+    public void update(float dt) {
+        stepDt = dt;
+        Workers.forBands(0, count, Math.max(4096, Workers.grainFor(count)), advectBand);
+        compact();
+        emit();
+    }
+
+    // Moves particles [from, to) one step, dead ones get a negative age
+    void advect(int from, int to) {
+        float dt = stepDt;
+        float maxX = l.xCells * l.cellWidth;
+        float maxY = l.yCells * l.cellHeight;
+
+        for (int i = from; i < to; i++) {
+            float x = px[i];
+            float y = py[i];
+
+            // RK2 (midpoint)
+            float u1 = l.sampleField(x, y, Liquid.U_FIELD);
+            float v1 = l.sampleField(x, y, Liquid.V_FIELD);
+            float mx = x + 0.5f * dt * u1;
+            float my = y + 0.5f * dt * v1;
+            x += dt * l.sampleField(mx, my, Liquid.U_FIELD);
+            y += dt * l.sampleField(mx, my, Liquid.V_FIELD);
+
+            float a = age[i] + dt;
+            if (a > MAX_AGE || !(x >= 0 && y >= 0 && x < maxX && y < maxY)
+                    || l.s[(int) (y / l.cellHeight)][(int) (x / l.cellWidth)] == 0) {
+                a = -1.0f;
+            }
+            px[i] = x;
+            py[i] = y;
+            age[i] = a;
+        }
+    }
+
+    // Packs the live particles to the front, keeping their order
+    void compact() {
+        int alive = 0;
+        for (int i = 0; i < count; i++) {
+            if (age[i] >= 0) {
+                px[alive] = px[i];
+                py[alive] = py[i];
+                age[alive] = age[i];
+                alive++;
+            }
+        }
+        count = alive;
+    }
+
+    void emit() {
+        for (int e = 0; e < emitX.length; e++) {
+            for (int k = 0; k < EMIT_PER_CELL && count < MAX_PARTICLES; k++) {
+                px[count] = (emitX[e] + nextJitter()) * l.cellWidth;
+                py[count] = (emitY[e] + nextJitter()) * l.cellHeight;
+                age[count] = 0.0f;
+                count++;
+            }
+        }
+    }
+
+    // 0..1
+    float nextJitter() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return (seed >>> 8) * 0x1p-24f;
+    }
+
+    // Adds every particle's light to the image, call after the background has been colored
+    public void splat() {
+        for (int i = 0; i < count; i++) {
+            int x = (int) (px[i] / l.cellWidth);
+            int y = (int) (py[i] / l.cellHeight);
+            int rgb = l.pixels[y * l.xCells + x];
+
+            // Fade out as they get old
+            int add = (int) (SPLAT * (1.0f - age[i] / MAX_AGE));
+            int r = Math.min(255, ((rgb >> 16) & 0xFF) + add);
+            int g = Math.min(255, ((rgb >> 8) & 0xFF) + add);
+            int b = Math.min(255, (rgb & 0xFF) + add);
+            l.setPixel(y, x, (r << 16) | (g << 8) | b);
+        }
+    }
+}
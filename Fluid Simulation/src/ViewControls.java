@@ -0,0 +1,46 @@
+import java.awt.*;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+
+import javax.swing.SwingUtilities;
+
+/*
+ * View Controls
+ *
+ *      What both ways of drawing (GameWindow and RenderCanvas) do the same
+ *      - Number keys 0-4 pick a container, apply() swaps it in between steps on the simulation thread
+ *      - setTitle() shows the stats (and the real time mode's summary) in the title of the window the view is in
+ */
+
+public class ViewControls extends KeyAdapter {
+
+    volatile int pendingContainer = -1; // Container picked with the number keys, swapped in between steps
+
+    @Override
+    public void keyPressed(KeyEvent e) {
+        char c = e.getKeyChar();
+        if (c >= '0' && c <= '4') {
+            pendingContainer = c - '0';
+        }
+    }
+
+    // Call from the simulation thread, before a step
+    public void apply(Liquid l) {
+        int container = pendingContainer;
+        if (container >= 0) {
+            pendingContainer = -1;
+            l.setContainer(container);
+        }
+    }
+
+    // Safe to call from any thread
+    public static void setTitle(Component view, Liquid l, String stats) {
+        final String title = l.deadline != null ? stats + " | " + l.deadline.summary() : stats;
+        SwingUtilities.invokeLater(() -> {
+            Window window = SwingUtilities.getWindowAncestor(view);
+            if (window instanceof Frame) {
+                ((Frame) window).setTitle(title);
+            }
+        });
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Shared worker pool for everything that can be split up into independent rows / chunks.
+ *
+ *      - One ForkJoin pool for the whole program, so the solver, streamlines, etc. don't fight over threads
+ *      - Parallelism can be set with -Dfluid.threads=N (defaults to every core), or changed while running with setParallelism
+ *      - With 1 thread everything just runs inline on the calling thread
+ */
+
+public class Workers {
+
+    static volatile int parallelism = Math.max(1, Integer.getInteger("fluid.threads", Runtime.getRuntime().availableProcessors()));
+
+    static volatile ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+    // Swaps in a pool with the given amount of threads, call it between steps (work already running finishes on the old pool)
+    public static synchronized void setParallelism(int threads) {
+        threads = Math.max(1, threads);
+        if (threads == parallelism) {
+            return;
+        }
+        ForkJoinPool old = pool;
+        pool = new ForkJoinPool(threads);
+        parallelism = threads;
+        old.shutdown();
+    }
+
+    public static int getParallelism() {
+        return parallelism;
+    }
+
+    // A chunk of work covering [from, to)
+    public interface Band {
+        void run(int from, int to);
+    }
+
+    // Runs band over [from, to), split into pieces no smaller than grain
+    public static void forBands(int from, int to, int grain, Band band) {
+        if (to <= from) {
+            return;
+        }
+        if (parallelism == 1 || to - from <= grain) {
+            band.run(from, to);
+            return;
+        }
+        pool.invoke(new BandTask(from, to, Math.max(1, grain), band));
+    }
+
+    // Picks a grain so every worker gets a few bands to balance with
+    public static int grainFor(int count) {
+        return Math.max(1, count / (parallelism * 4));
+    }
+
+    @SuppressWarnings("serial")
+    static class BandTask extends RecursiveAction {
+        final int from, to, grain;
+        final Band band;
+
+        BandTask(int from, int to, int grain, Band band) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.band = band;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                band.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new BandTask(from, mid, grain, band), new BandTask(mid, to, grain, band));
+        }
+    }
+}